@@ -0,0 +1,95 @@
+package btree;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of non-negative longs, such as latencies in nanoseconds, that
+ * threads can record into at once: each bucket is a LongAdder, so
+ * recording allocates nothing and takes no lock. Buckets are HDR-style:
+ * values below 16 have one each, and every power of two above is cut into
+ * 16, so a bucket is at most 1/16 of its values wide. Values of 2^40 and
+ * more (18 minutes of nanoseconds) share the last bucket.
+ *
+ * BTreeFile's metrics keep theirs in these; a load driver can keep its own
+ * and read them the same way, through snapshot() and percentile().
+ */
+public final class BTHistogram {
+
+	private static final int SUB_BITS = 4;
+	private static final int SUBS = 1 << SUB_BITS;
+	private static final int MAX_BITS = 40;
+
+	private final LongAdder[] counts = new LongAdder[(MAX_BITS - SUB_BITS + 1)
+			* SUBS];
+
+	public BTHistogram() {
+		for (int i = 0; i < counts.length; i++)
+			counts[i] = new LongAdder();
+	}
+
+	public void record(long value) {
+		counts[bucket(value)].increment();
+	}
+
+	private int bucket(long value) {
+		if (value < SUBS)
+			return value < 0 ? 0 : (int) value;
+		int top = 63 - Long.numberOfLeadingZeros(value);
+		if (top >= MAX_BITS)
+			return counts.length - 1;
+		return (top - SUB_BITS + 1) * SUBS
+				+ ((int) (value >>> (top - SUB_BITS)) & (SUBS - 1));
+	}
+
+	/*
+	 * The smallest value in bucket i.
+	 */
+	private static long lowest(int i) {
+		if (i < SUBS)
+			return i;
+		int top = i / SUBS + SUB_BITS - 1;
+		return (long) (SUBS + i % SUBS) << (top - SUB_BITS);
+	}
+
+	/**
+	 * The count of every bucket, only as exact as a snapshot of counters
+	 * that go on changing can be. Two snapshots subtracted bucket by bucket
+	 * give the histogram of what was recorded in between.
+	 */
+	public long[] snapshot() {
+		long[] n = new long[counts.length];
+		for (int i = 0; i < n.length; i++)
+			n[i] = counts[i].sum();
+		return n;
+	}
+
+	/**
+	 * The number of values in a snapshot.
+	 */
+	public static long count(long[] snapshot) {
+		long n = 0;
+		for (long c : snapshot)
+			n += c;
+		return n;
+	}
+
+	/**
+	 * The upper end of the bucket the q-th quantile of a snapshot falls in;
+	 * q = 1 gives the max. 0 if the snapshot is empty.
+	 */
+	public static long percentile(long[] snapshot, double q) {
+		long rank = Math.max(1, (long) Math.ceil(q * count(snapshot)));
+		long seen = 0;
+		for (int i = 0; i < snapshot.length; i++) {
+			seen += snapshot[i];
+			if (seen >= rank)
+				return lowest(i + 1) - 1;
+		}
+		return 0;
+	}
+
+	public void reset() {
+		for (LongAdder count : counts)
+			count.reset();
+	}
+}
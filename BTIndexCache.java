@@ -0,0 +1,161 @@
+package btree;
+
+import java.util.concurrent.ConcurrentHashMap;
+import global.*;
+import heap.*;
+
+/**
+ * Decoded copies of the index pages at the top of a tree, which the
+ * optimistic descent of BTreeFile.findRunStart passes without pinning them.
+ *
+ * A page is kept as its separators in an int or String array, its children
+ * (the left-most first), its high key and its next link, together with the
+ * stamp of its latch (BTLatches.optimistic) that it was read under. Every
+ * change to an index page is made under its exclusive latch, and so is
+ * retiring it, which moves that stamp on. A copy is therefore good exactly
+ * while BTLatches.validate(pid, stamp) holds: a split, a merge or a new root
+ * needs no word to the cache, the next descent through the page finds the
+ * copy stale, reads the page and keeps the new copy instead.
+ *
+ * Only pages on the top `levels' levels are kept, the root being level 1,
+ * so the number of copies follows the fan-out of those levels.
+ */
+class BTIndexCache implements GlobalConst {
+
+	/**
+	 * The copy of one index page. It is never changed once made.
+	 */
+	static final class Entry {
+		final long stamp; // of the page's latch, when the copy was read
+		final int count; // separators
+		final int[] intKeys; // separators of an integer index
+		final String[] strKeys; // separators of a string index
+		final int[] children; // children[i + 1] is the child of separator i
+		final boolean hasHighKey;
+		final int intHighKey;
+		final String strHighKey;
+		final int nextPage;
+
+		/*
+		 * Decode index page data, read under stamp. The caller validates the
+		 * stamp before it uses the copy, as the page may change meanwhile;
+		 * what a torn read makes of it then does not matter.
+		 */
+		Entry(byte[] data, int keyType, long stamp)
+				throws KeyNotMatchException {
+			this.stamp = stamp;
+			count = BTPageBytes.slotCount(data);
+			children = new int[count + 1];
+			children[0] = BTPageBytes.getInt(data, HFPage.PREV_PAGE);
+			if (keyType == AttrType.attrInteger) {
+				intKeys = new int[count];
+				strKeys = null;
+			} else {
+				intKeys = null;
+				strKeys = new String[count];
+			}
+			for (int i = 0; i < count; i++) {
+				if (intKeys != null)
+					intKeys[i] = BTPageBytes.intKeyAt(data, i);
+				else
+					strKeys[i] = ((StringKey) BTPageBytes.keyAt(data, i, keyType))
+							.getKey();
+				children[i + 1] = BTPageBytes.childAt(data, i);
+			}
+			KeyClass highKey = BTPageBytes.highKey(data, keyType);
+			hasHighKey = highKey != null;
+			intHighKey = highKey instanceof IntegerKey ? ((IntegerKey) highKey)
+					.getKey().intValue() : 0;
+			strHighKey = highKey instanceof StringKey ? ((StringKey) highKey)
+					.getKey() : null;
+			nextPage = BTPageBytes.getInt(data, HFPage.NEXT_PAGE);
+		}
+
+		/**
+		 * As BTPageBytes.pastHighKey: whether key belongs to a page further
+		 * right.
+		 */
+		boolean pastHighKey(KeyClass key) {
+			if (!hasHighKey || key == null)
+				return false;
+			if (intKeys != null)
+				return ((IntegerKey) key).getKey().intValue() > intHighKey;
+			return ((StringKey) key).getKey().compareTo(strHighKey) > 0;
+		}
+
+		/**
+		 * As BTPageBytes.firstChildFor: the child of the last separator less
+		 * than key, the left-most child for a null key.
+		 */
+		int firstChildFor(KeyClass key) {
+			if (key == null)
+				return children[0];
+			int lo = 0;
+			int hi = count;
+			if (intKeys != null) {
+				int k = ((IntegerKey) key).getKey().intValue();
+				while (lo < hi) {
+					int mid = (lo + hi) >>> 1;
+					if (k > intKeys[mid])
+						lo = mid + 1;
+					else
+						hi = mid;
+				}
+			} else {
+				String k = ((StringKey) key).getKey();
+				while (lo < hi) {
+					int mid = (lo + hi) >>> 1;
+					if (k.compareTo(strKeys[mid]) > 0)
+						lo = mid + 1;
+					else
+						hi = mid;
+				}
+			}
+			return children[lo];
+		}
+	}
+
+	private final ConcurrentHashMap<Integer, Entry> entries = new ConcurrentHashMap<Integer, Entry>();
+	private volatile int levels;
+
+	BTIndexCache(int levels) {
+		this.levels = levels;
+	}
+
+	/**
+	 * Whether pages `depth' levels below the root are kept.
+	 */
+	boolean keeps(int depth) {
+		return depth < levels;
+	}
+
+	/**
+	 * Keep the top `levels' levels from now on; 0 keeps none.
+	 */
+	void setLevels(int levels) {
+		this.levels = levels;
+		entries.clear();
+	}
+
+	/**
+	 * The copy of page pid, not yet validated, or null.
+	 */
+	Entry get(int pid) {
+		return entries.get(pid);
+	}
+
+	void put(int pid, Entry entry) {
+		entries.put(pid, entry);
+	}
+
+	/**
+	 * Forget page pid, which left the tree.
+	 */
+	void remove(int pid) {
+		entries.remove(pid);
+	}
+
+	void clear() {
+		entries.clear();
+	}
+}
@@ -0,0 +1,209 @@
+package btree;
+
+import java.io.*;
+import global.*;
+import heap.*;
+import bufmgr.*;
+import diskmgr.*;
+
+/**
+ * Range scan over an integer index that returns keys and rids as
+ * primitives. It walks the leaf chain like BTLeafScan, copying each leaf
+ * into a BTLeafBlock, but hands entries out of the block's arrays instead
+ * of building a KeyDataEntry, so iterating allocates nothing per entry.
+ * Get one from BTreeFile.new_scan(int, int).
+ */
+public class BTIntScan implements GlobalConst {
+
+	BTLeafPage leafPage; // pinned; null once the scan is done
+	int slot; // next entry of block to return
+	int hiKey;
+	BTLeafBlock block = new BTLeafBlock(AttrType.attrInteger); // leafPage
+	boolean compressed;
+	BTReadAhead readAhead; // null unless the scan reads ahead
+
+	private int key;
+	private int ridPage;
+	private int ridSlot;
+
+	// as in BTLeafScan: the highest key of the leaves left and its rids there
+	private boolean hasLastKey;
+	private int lastKey;
+	private final BTLeafScan.Returned lastRids = new BTLeafScan.Returned();
+	private boolean skipping;
+	private int resumeAt;
+	private boolean splitOff;
+
+	/*
+	 * Start at entry `slot' of the leaf set up by new_scan, which the caller
+	 * holds latched.
+	 */
+	void start(int slot) throws IOException {
+		if (leafPage != null) {
+			BTLeafScan.read(leafPage, block, compressed);
+			resumeAt = block.nextPage;
+			BTLatches.registerScan(leafPage.getCurPage().pid);
+			if (readAhead != null)
+				readAhead.moved(leafPage.getCurPage().pid);
+		}
+		this.slot = slot;
+	}
+
+	/**
+	 * Move to the next entry of the range.
+	 *
+	 * @return false when the range is exhausted
+	 * @exception ScanIteratorException
+	 *                iterator error
+	 */
+	public boolean get_next() throws ScanIteratorException {
+		try {
+			while (leafPage != null) {
+				if (slot == block.count) {
+					rememberLastRun();
+					leafPage = BTLeafScan.nextLeaf(leafPage, block, compressed,
+							AttrType.attrInteger);
+					if (readAhead != null && leafPage != null)
+						readAhead.moved(leafPage.getCurPage().pid);
+					slot = 0;
+					splitOff = leafPage != null
+							&& leafPage.getCurPage().pid != resumeAt;
+					if (leafPage != null && !splitOff)
+						resumeAt = block.nextPage;
+					lastRids.nextLeaf();
+					skipping = splitOff && hasLastKey;
+					continue;
+				}
+
+				int i = slot++;
+				if (skipping) {
+					if (block.intKeys[i] > lastKey)
+						skipping = false;
+					else if (block.intKeys[i] < lastKey
+							|| lastRids.match(BTLeafScan.rid(block, i)))
+						continue;
+				}
+				if (block.intKeys[i] > hiKey) {
+					DestroyBTreeFileScan();
+					return false;
+				}
+				key = block.intKeys[i];
+				ridPage = block.ridPages[i];
+				ridSlot = block.ridSlots[i];
+				return true;
+			}
+			return false;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanIteratorException(e, "");
+		}
+	}
+
+	/**
+	 * Move over up to keys.length entries of the range at once, copying
+	 * their keys into keys and their rids into ridPages and ridSlots, from
+	 * index 0 on. The rid arrays must be at least as long as keys. Entries
+	 * are copied out of the decoded leaf in runs, so a batch costs about one
+	 * array copy per leaf it spans. get_key and get_rid return the last
+	 * entry of the batch afterwards.
+	 *
+	 * @return the number of entries copied, less than keys.length only when
+	 *         the range is exhausted
+	 * @exception ScanIteratorException
+	 *                iterator error
+	 */
+	public int get_next_batch(int[] keys, int[] ridPages, int[] ridSlots)
+			throws ScanIteratorException {
+		int n = 0;
+		try {
+			while (n < keys.length && leafPage != null) {
+				if (skipping || slot == block.count) {
+					// moving on, or past the entries returned already
+					if (!get_next())
+						break;
+					keys[n] = key;
+					ridPages[n] = ridPage;
+					ridSlots[n] = ridSlot;
+					n++;
+					continue;
+				}
+
+				int end = Math.min(block.count, slot + keys.length - n);
+				int stop = end;
+				if (block.intKeys[end - 1] > hiKey) {
+					stop = slot;
+					while (block.intKeys[stop] <= hiKey)
+						stop++;
+				}
+				System.arraycopy(block.intKeys, slot, keys, n, stop - slot);
+				System.arraycopy(block.ridPages, slot, ridPages, n, stop - slot);
+				System.arraycopy(block.ridSlots, slot, ridSlots, n, stop - slot);
+				n += stop - slot;
+				slot = stop;
+				if (n > 0) {
+					key = keys[n - 1];
+					ridPage = ridPages[n - 1];
+					ridSlot = ridSlots[n - 1];
+				}
+				if (stop < end)
+					DestroyBTreeFileScan();
+			}
+			return n;
+		} catch (ScanIteratorException e) {
+			throw e;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanIteratorException(e, "");
+		}
+	}
+
+	private void rememberLastRun() {
+		if (block.count == 0)
+			return;
+		int last = block.intKeys[block.count - 1];
+		if (hasLastKey && splitOff && last < lastKey)
+			return;
+		boolean same = hasLastKey && splitOff && last == lastKey;
+		if (!same) {
+			hasLastKey = true;
+			lastKey = last;
+			lastRids.clear();
+		}
+		lastRids.nextLeaf();
+		for (int i = block.count - 1; i >= 0 && block.intKeys[i] == lastKey; i--)
+			if (!same || !lastRids.match(BTLeafScan.rid(block, i)))
+				lastRids.add(BTLeafScan.rid(block, i));
+	}
+
+	/**
+	 * @return the key of the current entry
+	 */
+	public int get_key() {
+		return key;
+	}
+
+	/**
+	 * Copy the rid of the current entry into rid.
+	 */
+	public void get_rid(RID rid) {
+		if (rid.pageNo == null)
+			rid.pageNo = new PageId();
+		rid.pageNo.pid = ridPage;
+		rid.slotNo = ridSlot;
+	}
+
+	/**
+	 * Unpin the leaf the scan is on. Called by get_next at the end of the
+	 * range; call it when a scan is abandoned before that.
+	 */
+	public void DestroyBTreeFileScan() throws IOException,
+			InvalidFrameNumberException, ReplacerException,
+			PageUnpinnedException, HashEntryNotFoundException {
+		if (readAhead != null)
+			readAhead.close();
+		if (leafPage != null) {
+			BTLeafScan.leave(leafPage);
+			leafPage = null;
+		}
+	}
+}
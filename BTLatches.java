@@ -0,0 +1,324 @@
+package btree;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Page latches for concurrent BTreeFile operations, and the latches one
+ * operation holds.
+ *
+ * A latch is a shared/exclusive lock on a page id. They live in one table
+ * for all open indexes, since page ids are unique in the database. An
+ * entry is made when a page is first latched and kept from then on, so
+ * finding a latch takes no lock and an optimistic stamp always belongs to
+ * the one lock of its page; the table grows to the pages in use.
+ *
+ * Latches are always taken top-down from the header page, whose latch
+ * guards the root id, and left to right along a level, so waiting for one
+ * never closes a cycle. The only step against that order, full delete
+ * borrowing from a left sibling, uses tryExclusive and gives up instead of
+ * waiting.
+ *
+ * Inserts and deletes couple latches: the page above stays latched until
+ * the page below is. Readers hold one latch at a time. A page they reach
+ * through a link read earlier may have split in between; its high key
+ * tells them and they move right (B-link). What moving right cannot undo,
+ * entries moved left or a page freed by full delete, is counted by
+ * shifts(), and a reader that sees it change starts over.
+ *
+ * Optimistic readers take no latch at all on the pages above a leaf: they
+ * read a page under the version stamp of its latch (optimistic()) and
+ * check it afterwards (validate()). Such a reader may still pin a page
+ * that full delete has just taken out of the tree, so full delete retires
+ * pages instead of freeing them, and they are freed by reclaim() once
+ * every optimistic reader that could have seen them is done, or when
+ * their index is closed and no reader can be in it.
+ *
+ * A scan holds no latch between calls to get_next. It registers the leaf
+ * it is on instead, and full delete leaves registered leaves alone: it
+ * neither frees one nor moves entries into or out of it.
+ */
+class BTLatches {
+
+	private static final class Latch {
+		final StampedLock lock = new StampedLock();
+		int scans; // scans on the page, guarded by the Latch
+	}
+
+	private static final ConcurrentHashMap<Integer, Latch> table = new ConcurrentHashMap<Integer, Latch>();
+
+	private static Latch latch(int pid) {
+		Latch latch = table.get(pid);
+		if (latch == null) {
+			Latch fresh = new Latch();
+			latch = table.putIfAbsent(pid, fresh);
+			if (latch == null)
+				latch = fresh;
+		}
+		return latch;
+	}
+
+	private static final AtomicLong shifts = new AtomicLong();
+
+	/**
+	 * Changes so far that a reader cannot follow by moving right. A reader
+	 * takes this while it holds the page it reads a link from and checks it
+	 * once it holds the page linked to.
+	 */
+	static long shifts() {
+		return shifts.get();
+	}
+
+	/**
+	 * Full delete moved entries to a page on the left or freed a page. The
+	 * caller still holds the pages latched.
+	 */
+	static void shifted() {
+		shifts.incrementAndGet();
+	}
+
+	/**
+	 * A stamp to read page pid under without latching it, or 0 if a writer
+	 * holds it.
+	 */
+	static long optimistic(int pid) {
+		return latch(pid).lock.tryOptimisticRead();
+	}
+
+	/**
+	 * Whether no writer has latched page pid since optimistic() returned
+	 * stamp, so that what was read under it is consistent.
+	 */
+	static boolean validate(int pid, long stamp) {
+		return latch(pid).lock.validate(stamp);
+	}
+
+	// Epochs: retire() numbers every retired page and moves the epoch on;
+	// an optimistic reader records the epoch it began in. A page may be
+	// freed once every reader still going began after it was retired.
+	private static final AtomicLong epoch = new AtomicLong(1);
+
+	private static final class Reader {
+		final AtomicLong began = new AtomicLong(); // 0 while not reading
+		int depth; // optimistic reads begun and not ended, by its thread
+	}
+
+	// the Readers of the threads in an optimistic read; a thread's Reader is
+	// only in here while it reads, so the set stays as small as the number
+	// of threads reading at once however many threads come and go
+	private static final Set<Reader> readers = ConcurrentHashMap.newKeySet();
+	private static final ThreadLocal<Reader> reader = new ThreadLocal<Reader>() {
+		protected Reader initialValue() {
+			return new Reader();
+		}
+	};
+
+	private static int[] retiredPids = new int[8];
+	private static long[] retiredEpochs = new long[8];
+	private static int[] retiredOwners = new int[8]; // header page of the index
+	private static int retiredCount;
+
+	/**
+	 * The calling thread starts an optimistic read. Reads may nest; the
+	 * outermost one counts.
+	 */
+	static void beginOptimistic() {
+		Reader r = reader.get();
+		if (r.depth++ > 0)
+			return;
+		readers.add(r);
+		long e;
+		do {
+			e = epoch.get();
+			r.began.set(e);
+		} while (epoch.get() != e);
+	}
+
+	/**
+	 * The calling thread is done with its optimistic read and has unpinned
+	 * the pages it pinned.
+	 */
+	static void endOptimistic() {
+		Reader r = reader.get();
+		if (--r.depth == 0) {
+			r.began.set(0);
+			readers.remove(r);
+		}
+	}
+
+	/**
+	 * Page pid of the index with header page owner is out of the tree; free
+	 * it once reclaim() hands it back. The caller still holds it latched and
+	 * has unpinned it.
+	 */
+	static synchronized void retire(int pid, int owner) {
+		if (retiredCount == retiredPids.length) {
+			retiredPids = java.util.Arrays.copyOf(retiredPids, 2 * retiredCount);
+			retiredEpochs = java.util.Arrays.copyOf(retiredEpochs, 2 * retiredCount);
+			retiredOwners = java.util.Arrays.copyOf(retiredOwners, 2 * retiredCount);
+		}
+		retiredPids[retiredCount] = pid;
+		retiredOwners[retiredCount] = owner;
+		retiredEpochs[retiredCount++] = epoch.getAndIncrement();
+	}
+
+	/**
+	 * The retired pages of the index with header page owner that no
+	 * optimistic reader can have pinned any more, or all of them if the
+	 * index is closing: then no thread reads it. They are taken off the
+	 * retired list; the caller frees them.
+	 */
+	static synchronized int[] reclaim(int owner, boolean closing) {
+		long oldest = Long.MAX_VALUE;
+		for (Reader r : readers) {
+			long e = r.began.get();
+			if (e != 0 && e < oldest)
+				oldest = e;
+		}
+		int n = 0;
+		int[] free = new int[retiredCount];
+		int kept = 0;
+		for (int i = 0; i < retiredCount; i++) {
+			if (retiredOwners[i] == owner
+					&& (closing || retiredEpochs[i] < oldest)) {
+				free[n++] = retiredPids[i];
+			} else {
+				retiredPids[kept] = retiredPids[i];
+				retiredOwners[kept] = retiredOwners[i];
+				retiredEpochs[kept++] = retiredEpochs[i];
+			}
+		}
+		retiredCount = kept;
+		return java.util.Arrays.copyOf(free, n);
+	}
+
+	/**
+	 * A scan moved onto page pid. The caller holds the page latched.
+	 */
+	static void registerScan(int pid) {
+		Latch latch = latch(pid);
+		synchronized (latch) {
+			latch.scans++;
+		}
+	}
+
+	/**
+	 * A scan left page pid.
+	 */
+	static void unregisterScan(int pid) {
+		Latch latch = latch(pid);
+		synchronized (latch) {
+			latch.scans--;
+		}
+	}
+
+	/**
+	 * Whether a scan is on page pid. Stable while the caller holds the page
+	 * latched exclusively, since scans register under a latch.
+	 */
+	static boolean scanned(int pid) {
+		Latch latch = table.get(pid);
+		if (latch == null)
+			return false;
+		synchronized (latch) {
+			return latch.scans > 0;
+		}
+	}
+
+	// the latches held, oldest first
+	private int[] pids = new int[8];
+	private Latch[] latches = new Latch[8];
+	private long[] stamps = new long[8];
+	private int size;
+
+	/**
+	 * Latch page pid shared, waiting for an exclusive holder.
+	 */
+	void shared(int pid) {
+		Latch latch = latch(pid);
+		push(pid, latch, latch.lock.readLock());
+	}
+
+	/**
+	 * Latch page pid exclusively, waiting for any holder.
+	 */
+	void exclusive(int pid) {
+		Latch latch = latch(pid);
+		push(pid, latch, latch.lock.writeLock());
+	}
+
+	/**
+	 * Latch page pid exclusively if no one else holds it.
+	 *
+	 * @return whether the latch was taken
+	 */
+	boolean tryExclusive(int pid) {
+		Latch latch = latch(pid);
+		long stamp = latch.lock.tryWriteLock();
+		if (stamp == 0)
+			return false;
+		push(pid, latch, stamp);
+		return true;
+	}
+
+	private void push(int pid, Latch latch, long stamp) {
+		if (size == pids.length) {
+			pids = java.util.Arrays.copyOf(pids, 2 * size);
+			latches = java.util.Arrays.copyOf(latches, 2 * size);
+			stamps = java.util.Arrays.copyOf(stamps, 2 * size);
+		}
+		pids[size] = pid;
+		latches[size] = latch;
+		stamps[size++] = stamp;
+	}
+
+	boolean holds(int pid) {
+		for (int i = 0; i < size; i++)
+			if (pids[i] == pid)
+				return true;
+		return false;
+	}
+
+	/**
+	 * Release the latch on page pid.
+	 */
+	void release(int pid) {
+		for (int i = size - 1; i >= 0; i--) {
+			if (pids[i] == pid) {
+				unlock(i);
+				System.arraycopy(pids, i + 1, pids, i, size - i - 1);
+				System.arraycopy(latches, i + 1, latches, i, size - i - 1);
+				System.arraycopy(stamps, i + 1, stamps, i, size - i - 1);
+				latches[--size] = null;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Release all but the n latches taken last. Crabbing calls this with 1
+	 * once a page is safe: nothing above it can change any more.
+	 */
+	void keepLast(int n) {
+		int drop = size - n;
+		if (drop <= 0)
+			return;
+		for (int i = 0; i < drop; i++)
+			unlock(i);
+		System.arraycopy(pids, drop, pids, 0, n);
+		System.arraycopy(latches, drop, latches, 0, n);
+		System.arraycopy(stamps, drop, stamps, 0, n);
+		java.util.Arrays.fill(latches, n, size, null);
+		size = n;
+	}
+
+	void releaseAll() {
+		keepLast(0);
+	}
+
+	private void unlock(int i) {
+		latches[i].lock.unlock(stamps[i]);
+	}
+}
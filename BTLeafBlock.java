@@ -0,0 +1,546 @@
+package btree;
+
+import global.*;
+import heap.*;
+
+/**
+ * The entries of a compressed leaf page (LeafFormat.COMPRESSED), decoded
+ * into arrays.
+ *
+ * A compressed leaf keeps all of its <key, rid> entries in one HFPage
+ * record: the entry count and the number of restart points (two bytes
+ * each), the entry number and offset of every restart point (two bytes
+ * each), then the entries in key order. A restart point holds its key in
+ * full: an integer key as four bytes, a string key as a varint length and
+ * its modified UTF-8 bytes. In between, an integer key is the varint
+ * difference to the key before it (so a run of close keys is coded against
+ * the restart key as frame of reference) and a string key is a varint for
+ * the bytes it shares with the key before it, a varint for the rest and the
+ * rest. Every entry ends with the page and slot number of its rid as
+ * varints. An empty compressed leaf has no record at all.
+ *
+ * Inserts lay the restart points out every RESTART_INTERVAL entries. A
+ * remove leaves the others where they are and hands the restart of a
+ * removed entry to the entry after it, so removing never makes a block
+ * bigger and a leaf can always be written back after a delete.
+ *
+ * Changes read the page into a block, edit the arrays and write it back;
+ * lowerBound finds a key through the restart points without decoding the
+ * page.
+ */
+class BTLeafBlock implements GlobalConst {
+
+	static final int RESTART_INTERVAL = 16;
+
+	final int keyType;
+	int count;
+	int[] intKeys;
+	byte[][] strKeys; // modified UTF-8, without a length
+	int[] ridPages;
+	int[] ridSlots;
+	boolean[] restarts; // entry i is a restart point
+	int nextPage; // the leaf's next link when BTLeafScan.read copied it
+
+	BTLeafBlock(int keyType) {
+		this.keyType = keyType;
+		if (keyType == AttrType.attrInteger)
+			intKeys = new int[64];
+		else
+			strKeys = new byte[64][];
+		ridPages = new int[64];
+		ridSlots = new int[64];
+		restarts = new boolean[64];
+	}
+
+	/*
+	 * Make room for n entries.
+	 */
+	private void ensure(int n) {
+		if (n <= ridPages.length)
+			return;
+		int length = Math.max(n, 2 * ridPages.length);
+		if (intKeys != null)
+			intKeys = java.util.Arrays.copyOf(intKeys, length);
+		else
+			strKeys = java.util.Arrays.copyOf(strKeys, length);
+		ridPages = java.util.Arrays.copyOf(ridPages, length);
+		ridSlots = java.util.Arrays.copyOf(ridSlots, length);
+		restarts = java.util.Arrays.copyOf(restarts, length);
+	}
+
+	/*
+	 * Put the restart points every RESTART_INTERVAL entries.
+	 */
+	private void layOutRestarts() {
+		for (int i = 0; i < count; i++)
+			restarts[i] = i % RESTART_INTERVAL == 0;
+	}
+
+	/**
+	 * Decode the leaf page data into this block.
+	 */
+	void read(byte[] data) {
+		count = 0;
+		if (BTPageBytes.slotCount(data) == 0)
+			return;
+		int base = BTPageBytes.slotOffset(data, 0);
+		int n = getShort(data, base);
+		int nRestarts = getShort(data, base + 2);
+		int pos = base + 4 + 4 * nRestarts;
+		ensure(n);
+		java.util.Arrays.fill(restarts, 0, n, false);
+		for (int r = 0; r < nRestarts; r++)
+			restarts[restartEntry(data, base, r)] = true;
+		for (int i = 0; i < n; i++) {
+			boolean restart = restarts[i];
+			if (intKeys != null) {
+				if (restart) {
+					intKeys[i] = BTPageBytes.getInt(data, pos);
+					pos += 4;
+				} else {
+					int delta = getVarint(data, pos);
+					pos += varintLength(delta);
+					intKeys[i] = intKeys[i - 1] + delta;
+				}
+			} else {
+				int shared = 0;
+				if (!restart) {
+					shared = getVarint(data, pos);
+					pos += varintLength(shared);
+				}
+				int rest = getVarint(data, pos);
+				pos += varintLength(rest);
+				byte[] key = new byte[shared + rest];
+				if (shared > 0)
+					System.arraycopy(strKeys[i - 1], 0, key, 0, shared);
+				System.arraycopy(data, pos, key, shared, rest);
+				pos += rest;
+				strKeys[i] = key;
+			}
+			ridPages[i] = getVarint(data, pos);
+			pos += varintLength(ridPages[i]);
+			ridSlots[i] = getVarint(data, pos);
+			pos += varintLength(ridSlots[i]);
+		}
+		count = n;
+	}
+
+	/**
+	 * Decode a plain (LeafFormat.PLAIN) leaf page into this block, so that
+	 * a scan can copy a leaf of either format.
+	 */
+	void readPlain(byte[] data) {
+		int n = BTPageBytes.slotCount(data);
+		ensure(n);
+		for (int i = 0; i < n; i++) {
+			int offset = BTPageBytes.slotOffset(data, i);
+			if (intKeys != null) {
+				intKeys[i] = BTPageBytes.getInt(data, offset);
+			} else {
+				int length = getShort(data, offset);
+				strKeys[i] = java.util.Arrays.copyOfRange(data, offset + 2,
+						offset + 2 + length);
+			}
+			ridPages[i] = BTPageBytes.ridPageAt(data, i);
+			ridSlots[i] = BTPageBytes.ridSlotAt(data, i);
+		}
+		count = n;
+		layOutRestarts();
+	}
+
+	/**
+	 * Write the whole block to the leaf page data, replacing its entries.
+	 * The caller checks size() <= BTPageBytes.capacity(data).
+	 */
+	void write(byte[] data) {
+		write(data, 0, count);
+	}
+
+	/**
+	 * Write entries [from, to) to the leaf page data, replacing its entries.
+	 */
+	void write(byte[] data, int from, int to) {
+		BTPageBytes.truncate(data, 0);
+		if (from == to)
+			return;
+		int nRestarts = restartCount(from, to);
+		int base = BTPageBytes.insertSlot(data, 0, size(from, to)
+				- HFPage.SIZE_OF_SLOT);
+		BTPageBytes.setShort(data, base, to - from);
+		BTPageBytes.setShort(data, base + 2, nRestarts);
+		int pos = base + 4 + 4 * nRestarts;
+		int r = 0;
+		for (int i = from; i < to; i++) {
+			boolean restart = i == from || restarts[i];
+			if (restart) {
+				BTPageBytes.setShort(data, base + 4 + 4 * r, i - from);
+				BTPageBytes.setShort(data, base + 6 + 4 * r, pos - base);
+				r++;
+			}
+			if (intKeys != null) {
+				if (restart) {
+					BTPageBytes.setInt(data, pos, intKeys[i]);
+					pos += 4;
+				} else {
+					pos = putVarint(data, pos, intKeys[i] - intKeys[i - 1]);
+				}
+			} else {
+				byte[] key = strKeys[i];
+				int shared = restart ? 0 : shared(strKeys[i - 1], key);
+				if (!restart)
+					pos = putVarint(data, pos, shared);
+				pos = putVarint(data, pos, key.length - shared);
+				System.arraycopy(key, shared, data, pos, key.length - shared);
+				pos += key.length - shared;
+			}
+			pos = putVarint(data, pos, ridPages[i]);
+			pos = putVarint(data, pos, ridSlots[i]);
+		}
+	}
+
+	/**
+	 * Bytes the whole block takes on a page, its slot included; 0 if empty.
+	 */
+	int size() {
+		return size(0, count);
+	}
+
+	/**
+	 * Bytes entries [from, to) would take written as a page of their own.
+	 */
+	int size(int from, int to) {
+		if (from == to)
+			return 0;
+		int size = HFPage.SIZE_OF_SLOT + 4 + 4 * restartCount(from, to);
+		for (int i = from; i < to; i++) {
+			boolean restart = i == from || restarts[i];
+			if (intKeys != null) {
+				size += restart ? 4 : varintLength(intKeys[i] - intKeys[i - 1]);
+			} else {
+				byte[] key = strKeys[i];
+				int shared = restart ? 0 : shared(strKeys[i - 1], key);
+				if (!restart)
+					size += varintLength(shared);
+				size += varintLength(key.length - shared) + key.length - shared;
+			}
+			size += varintLength(ridPages[i]) + varintLength(ridSlots[i]);
+		}
+		return size;
+	}
+
+	/*
+	 * Restart points of entries [from, to) written as a page of their own,
+	 * where the first entry always is one.
+	 */
+	private int restartCount(int from, int to) {
+		int n = 1;
+		for (int i = from + 1; i < to; i++)
+			if (restarts[i])
+				n++;
+		return n;
+	}
+
+	KeyClass keyAt(int i) {
+		if (intKeys != null)
+			return new IntegerKey(intKeys[i]);
+		return new StringKey(BTPageBytes.getUTF(strKeys[i], 0, strKeys[i].length));
+	}
+
+	/**
+	 * Compare key with the key of entry i, with the same sign as
+	 * BT.keyCompare(key, entryKey).
+	 */
+	int compare(KeyClass key, int i) throws KeyNotMatchException {
+		if (key instanceof IntegerKey && intKeys != null)
+			return Integer.compare(((IntegerKey) key).getKey().intValue(),
+					intKeys[i]);
+		if (key instanceof StringKey && strKeys != null)
+			return BTPageBytes.compareUTF(((StringKey) key).getKey(),
+					strKeys[i], 0, strKeys[i].length);
+		throw new KeyNotMatchException(null, "key types do not match");
+	}
+
+	/**
+	 * First entry whose key is not less than key.
+	 */
+	int lowerBound(KeyClass key) throws KeyNotMatchException {
+		int lo = 0;
+		int hi = count;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (compare(key, mid) > 0)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * First entry whose key is greater than key, where a new entry goes.
+	 */
+	int upperBound(KeyClass key) throws KeyNotMatchException {
+		int lo = 0;
+		int hi = count;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (compare(key, mid) >= 0)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	boolean hasRid(int i, RID rid) {
+		return ridPages[i] == rid.pageNo.pid && ridSlots[i] == rid.slotNo;
+	}
+
+	/**
+	 * Insert <key, rid> as entry pos.
+	 */
+	void insert(int pos, KeyClass key, RID rid) throws KeyNotMatchException {
+		if (key instanceof IntegerKey && intKeys != null) {
+			open(pos);
+			intKeys[pos] = ((IntegerKey) key).getKey().intValue();
+		} else if (key instanceof StringKey && strKeys != null) {
+			String s = ((StringKey) key).getKey();
+			byte[] bytes = new byte[BTPageBytes.utfLength(s)];
+			BTPageBytes.putUTF(s, bytes, 0);
+			open(pos);
+			strKeys[pos] = bytes;
+		} else {
+			throw new KeyNotMatchException(null, "key types do not match");
+		}
+		ridPages[pos] = rid.pageNo.pid;
+		ridSlots[pos] = rid.slotNo;
+		layOutRestarts();
+	}
+
+	/**
+	 * Take the entry insert put at pos out again. The restart points are laid
+	 * out as insert lays them out, so the block is as it was after the
+	 * insert before, sizes included; remove keeps them where they were.
+	 */
+	void uninsert(int pos) {
+		remove(pos, pos + 1);
+		layOutRestarts();
+	}
+
+	/*
+	 * Shift entries [pos, count) one up.
+	 */
+	private void open(int pos) {
+		ensure(count + 1);
+		int n = count - pos;
+		if (intKeys != null)
+			System.arraycopy(intKeys, pos, intKeys, pos + 1, n);
+		else
+			System.arraycopy(strKeys, pos, strKeys, pos + 1, n);
+		System.arraycopy(ridPages, pos, ridPages, pos + 1, n);
+		System.arraycopy(ridSlots, pos, ridSlots, pos + 1, n);
+		count++;
+	}
+
+	/**
+	 * Drop entries [from, to).
+	 */
+	void remove(int from, int to) {
+		if (from == to)
+			return;
+		boolean restart = from == 0;
+		for (int i = from; i < to; i++)
+			restart |= restarts[i];
+		int n = count - to;
+		if (intKeys != null) {
+			System.arraycopy(intKeys, to, intKeys, from, n);
+		} else {
+			System.arraycopy(strKeys, to, strKeys, from, n);
+			java.util.Arrays.fill(strKeys, from + n, count, null);
+		}
+		System.arraycopy(ridPages, to, ridPages, from, n);
+		System.arraycopy(ridSlots, to, ridSlots, from, n);
+		System.arraycopy(restarts, to, restarts, from, n);
+		count -= to - from;
+		if (from < count)
+			restarts[from] |= restart;
+	}
+
+	/**
+	 * Append entries [from, to) of src.
+	 */
+	void append(BTLeafBlock src, int from, int to) {
+		int n = to - from;
+		ensure(count + n);
+		if (intKeys != null)
+			System.arraycopy(src.intKeys, from, intKeys, count, n);
+		else
+			System.arraycopy(src.strKeys, from, strKeys, count, n);
+		System.arraycopy(src.ridPages, from, ridPages, count, n);
+		System.arraycopy(src.ridSlots, from, ridSlots, count, n);
+		count += n;
+		layOutRestarts();
+	}
+
+	/**
+	 * Number of entries on a compressed leaf page.
+	 */
+	static int count(byte[] data) {
+		if (BTPageBytes.slotCount(data) == 0)
+			return 0;
+		return getShort(data, BTPageBytes.slotOffset(data, 0));
+	}
+
+	/**
+	 * First entry of a compressed leaf page whose key is not less than key.
+	 * The restart keys are binary searched and only the entries of one
+	 * restart interval are decoded.
+	 */
+	static int lowerBound(byte[] data, int key) {
+		if (BTPageBytes.slotCount(data) == 0)
+			return 0;
+		int base = BTPageBytes.slotOffset(data, 0);
+
+		// first restart whose key is not less than key
+		int lo = 0;
+		int hi = getShort(data, base + 2);
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (key > BTPageBytes.getInt(data, restart(data, base, mid)))
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		if (lo == 0)
+			return 0;
+
+		// the answer is in the interval before it, or is that restart
+		int i = restartEntry(data, base, lo - 1);
+		int end = intervalEnd(data, base, lo - 1);
+		int pos = restart(data, base, lo - 1);
+		int cur = BTPageBytes.getInt(data, pos);
+		pos += 4;
+		while (cur < key && ++i < end) {
+			pos = skipRid(data, pos);
+			int delta = getVarint(data, pos);
+			pos += varintLength(delta);
+			cur += delta;
+		}
+		return i;
+	}
+
+	static int lowerBound(byte[] data, KeyClass key) throws KeyNotMatchException {
+		if (key instanceof IntegerKey)
+			return lowerBound(data, ((IntegerKey) key).getKey().intValue());
+		if (!(key instanceof StringKey))
+			throw new KeyNotMatchException(null, "key types do not match");
+		if (BTPageBytes.slotCount(data) == 0)
+			return 0;
+		String s = ((StringKey) key).getKey();
+		int base = BTPageBytes.slotOffset(data, 0);
+
+		int lo = 0;
+		int hi = getShort(data, base + 2);
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			int pos = restart(data, base, mid);
+			int length = getVarint(data, pos);
+			pos += varintLength(length);
+			if (BTPageBytes.compareUTF(s, data, pos, pos + length) > 0)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		if (lo == 0)
+			return 0;
+
+		int first = restartEntry(data, base, lo - 1);
+		int end = intervalEnd(data, base, lo - 1);
+		int pos = restart(data, base, lo - 1);
+		byte[] cur = new byte[MAX_SPACE];
+		for (int i = first; i < end; i++) {
+			int shared = 0;
+			if (i != first) {
+				shared = getVarint(data, pos);
+				pos += varintLength(shared);
+			}
+			int rest = getVarint(data, pos);
+			pos += varintLength(rest);
+			System.arraycopy(data, pos, cur, shared, rest);
+			pos += rest;
+			if (BTPageBytes.compareUTF(s, cur, 0, shared + rest) <= 0)
+				return i;
+			pos = skipRid(data, pos);
+		}
+		return end;
+	}
+
+	/*
+	 * Page offset of restart point r of the block at base.
+	 */
+	private static int restart(byte[] data, int base, int r) {
+		return base + getShort(data, base + 6 + 4 * r);
+	}
+
+	/*
+	 * Entry number of restart point r, and the end of its interval.
+	 */
+	private static int restartEntry(byte[] data, int base, int r) {
+		return getShort(data, base + 4 + 4 * r);
+	}
+
+	private static int intervalEnd(byte[] data, int base, int r) {
+		if (r + 1 < getShort(data, base + 2))
+			return restartEntry(data, base, r + 1);
+		return getShort(data, base);
+	}
+
+	private static int skipRid(byte[] data, int pos) {
+		pos += varintLength(getVarint(data, pos));
+		return pos + varintLength(getVarint(data, pos));
+	}
+
+	private static int shared(byte[] a, byte[] b) {
+		int n = Math.min(a.length, b.length);
+		int i = 0;
+		while (i < n && a[i] == b[i])
+			i++;
+		return i;
+	}
+
+	private static int getShort(byte[] data, int offset) {
+		return BTPageBytes.getShort(data, offset) & 0xffff;
+	}
+
+	/*
+	 * Varints hold an int as unsigned, seven bits a byte, low bits first.
+	 */
+
+	static int varintLength(int v) {
+		int length = 1;
+		while ((v & ~0x7f) != 0) {
+			v >>>= 7;
+			length++;
+		}
+		return length;
+	}
+
+	static int putVarint(byte[] data, int pos, int v) {
+		while ((v & ~0x7f) != 0) {
+			data[pos++] = (byte) ((v & 0x7f) | 0x80);
+			v >>>= 7;
+		}
+		data[pos++] = (byte) v;
+		return pos;
+	}
+
+	static int getVarint(byte[] data, int pos) {
+		int v = 0;
+		for (int shift = 0;; shift += 7) {
+			int b = data[pos++];
+			v |= (b & 0x7f) << shift;
+			if (b >= 0)
+				return v;
+		}
+	}
+}
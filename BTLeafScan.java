@@ -0,0 +1,297 @@
+package btree;
+
+import java.io.*;
+import global.*;
+import heap.*;
+import bufmgr.*;
+import diskmgr.*;
+
+/**
+ * The BTFileScan that BTreeFile.new_scan returns. Each leaf the scan gets
+ * to is copied into a BTLeafBlock under a shared latch and the entries are
+ * handed out from the copy, so the scan holds no latch between calls and
+ * reads leaves of either format (LeafFormat).
+ *
+ * The leaf stays pinned, and registered with BTLatches, while the scan is
+ * on it. Moving on follows the leaf's next link as it is at that time: if
+ * the leaf split since it was copied, the new leaf holds entries that were
+ * returned from the copy already, and those are skipped. A leaf is known
+ * to have split off that way when it is not the one the copy linked to.
+ */
+public class BTLeafScan extends BTFileScan {
+
+	private final boolean compressed;
+	private BTLeafBlock block;
+	private int next; // entry of block that get_next returns next
+	private int current = -1; // entry of block get_next returned last
+	BTReadAhead readAhead; // null unless the scan reads ahead
+
+	// highest key of the leaves left so far and the rids it had on them,
+	// skipped on this leaf while `skipping'
+	private KeyClass lastKey;
+	private final Returned lastRids = new Returned();
+	private boolean skipping;
+	// next link of the last leaf copied that had not split off a leaf before
+	// it, and whether the leaf the scan is on did
+	private int resumeAt;
+	private boolean splitOff;
+
+	/*
+	 * The rids returned with the last key, each as many times as it was
+	 * returned, since an index may hold one <key, rid> more than once. A
+	 * leaf that split off a leaf already left holds copies of some of them;
+	 * each copy skipped there uses up one match, so a duplicate beyond the
+	 * copies is still returned.
+	 */
+	static final class Returned {
+		private long[] rids = new long[8];
+		private boolean[] used = new boolean[8]; // on the current leaf
+		private int count;
+
+		void clear() {
+			count = 0;
+		}
+
+		/*
+		 * On to another leaf: every rid can be matched once again.
+		 */
+		void nextLeaf() {
+			java.util.Arrays.fill(used, 0, count, false);
+		}
+
+		/*
+		 * Whether rid matches one returned that no entry of this leaf has
+		 * matched yet; that one is used up.
+		 */
+		boolean match(long rid) {
+			for (int j = 0; j < count; j++)
+				if (!used[j] && rids[j] == rid) {
+					used[j] = true;
+					return true;
+				}
+			return false;
+		}
+
+		/*
+		 * rid was returned once more, by an entry of this leaf.
+		 */
+		void add(long rid) {
+			if (count == rids.length) {
+				rids = java.util.Arrays.copyOf(rids, 2 * count);
+				used = java.util.Arrays.copyOf(used, 2 * count);
+			}
+			used[count] = true;
+			rids[count++] = rid;
+		}
+	}
+
+	BTLeafScan(int keyType, boolean compressed) {
+		this.keyType = keyType;
+		this.compressed = compressed;
+		block = new BTLeafBlock(keyType);
+	}
+
+	/*
+	 * Start at entry `slot' of the leaf set up by new_scan, which the caller
+	 * holds latched.
+	 */
+	void start(int slot) throws IOException {
+		if (leafPage != null) {
+			read(leafPage, block, compressed);
+			resumeAt = block.nextPage;
+			BTLatches.registerScan(leafPage.getCurPage().pid);
+			if (readAhead != null)
+				readAhead.moved(leafPage.getCurPage().pid);
+		}
+		next = slot;
+	}
+
+	/**
+	 * Iterate once (during a scan).
+	 *
+	 * @return null if done; otherwise next KeyDataEntry
+	 * @exception ScanIteratorException
+	 *                iterator error
+	 */
+	public KeyDataEntry get_next() throws ScanIteratorException {
+		try {
+			while (leafPage != null) {
+				if (next == block.count) {
+					rememberLastRun();
+					leafPage = nextLeaf(leafPage, block, compressed, keyType);
+					if (readAhead != null && leafPage != null)
+						readAhead.moved(leafPage.getCurPage().pid);
+					next = 0;
+					current = -1;
+					splitOff = leafPage != null
+							&& leafPage.getCurPage().pid != resumeAt;
+					if (leafPage != null && !splitOff)
+						resumeAt = block.nextPage;
+					lastRids.nextLeaf();
+					skipping = splitOff && lastKey != null;
+					continue;
+				}
+
+				int i = next++;
+				if (skipping) {
+					int cmp = block.compare(lastKey, i);
+					if (cmp < 0)
+						skipping = false;
+					else if (cmp > 0 || lastRids.match(rid(block, i)))
+						continue;
+				}
+				KeyClass key = block.keyAt(i);
+				if (endkey != null && BT.keyCompare(key, endkey) > 0) {
+					DestroyBTreeFileScan();
+					return null;
+				}
+				current = i;
+				curRid.pageNo = leafPage.getCurPage();
+				curRid.slotNo = i;
+				return new KeyDataEntry(key, new RID(new PageId(
+						block.ridPages[i]), block.ridSlots[i]));
+			}
+			return null;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanIteratorException(e, "");
+		}
+	}
+
+	/*
+	 * Before leaving a leaf: its last key and the rids that key had on it.
+	 * Only the leaves split off this one can hold copies of its entries, so
+	 * a leaf that did not split off starts them over. Of the others, one
+	 * that was empty when copied, or that held only entries returned already
+	 * (it split off the copy of an earlier leaf, and then split again),
+	 * leaves them as they were; one ending in the same key adds the rids it
+	 * returned, those its skipped entries did not match.
+	 */
+	private void rememberLastRun() throws KeyNotMatchException {
+		if (block.count == 0)
+			return;
+		KeyClass last = block.keyAt(block.count - 1);
+		int cmp = lastKey == null || !splitOff ? 1 : BT.keyCompare(last, lastKey);
+		if (cmp < 0)
+			return;
+		if (cmp > 0) {
+			lastKey = last;
+			lastRids.clear();
+		}
+		lastRids.nextLeaf();
+		for (int i = block.count - 1; i >= 0 && block.compare(lastKey, i) == 0; i--)
+			if (cmp > 0 || !lastRids.match(rid(block, i)))
+				lastRids.add(rid(block, i));
+	}
+
+	static long rid(BTLeafBlock block, int i) {
+		return (long) block.ridPages[i] << 32 | block.ridSlots[i] & 0xffffffffL;
+	}
+
+	/**
+	 * Delete currently-being-scanned(i.e., just scanned) data entry.
+	 *
+	 * @exception ScanDeleteException
+	 *                delete error when scan
+	 */
+	public void delete_current() throws ScanDeleteException {
+		if (leafPage == null || current < 0)
+			throw new ScanDeleteException(null, "no current entry");
+		try {
+			// the copy keeps the entry, but the scan is past it already
+			bfile.Delete(block.keyAt(current), new RID(new PageId(
+					block.ridPages[current]), block.ridSlots[current]));
+			current = -1;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanDeleteException(e, "");
+		}
+	}
+
+	/**
+	 * Unpin the leaf the scan is on. Called by get_next at the end of the
+	 * range; call it when a scan is abandoned before that.
+	 */
+	public void DestroyBTreeFileScan() throws IOException,
+			InvalidFrameNumberException, ReplacerException,
+			PageUnpinnedException, HashEntryNotFoundException {
+		if (readAhead != null)
+			readAhead.close();
+		if (leafPage != null) {
+			leave(leafPage);
+			leafPage = null;
+		}
+	}
+
+	/*
+	 * Copy a leaf held latched into block.
+	 */
+	static void read(BTLeafPage leaf, BTLeafBlock block, boolean compressed) {
+		if (compressed)
+			block.read(leaf.getpage());
+		else
+			block.readPlain(leaf.getpage());
+		block.nextPage = BTPageBytes.getInt(leaf.getpage(), HFPage.NEXT_PAGE);
+	}
+
+	/*
+	 * Move a scan from `leaf' to the leaf after it and copy that one into
+	 * block, holding one latch at a time. Returns it pinned and registered,
+	 * or null at the end of the leaf level; `leaf' is left either way.
+	 *
+	 * The next link is read again if the leaf it led to may have been merged
+	 * away before it was latched (see BTLatches.shifts). `leaf' itself stays,
+	 * as full delete does not merge a leaf a scan is on.
+	 */
+	static BTLeafPage nextLeaf(BTLeafPage leaf, BTLeafBlock block,
+			boolean compressed, int keyType) throws IOException,
+			ConstructPageException, InvalidFrameNumberException,
+			ReplacerException, PageUnpinnedException,
+			HashEntryNotFoundException, BufMgrException, HashOperationException,
+			PageNotReadException, BufferPoolExceededException,
+			PagePinnedException {
+		BTLatches latches = new BTLatches();
+		int pid = leaf.getCurPage().pid;
+		try {
+			int nextPage;
+			while (true) {
+				latches.shared(pid);
+				nextPage = BTPageBytes.getInt(leaf.getpage(), HFPage.NEXT_PAGE);
+				long shifts = BTLatches.shifts();
+				latches.release(pid);
+				if (nextPage == INVALID_PAGE) {
+					leave(leaf);
+					return null;
+				}
+				latches.shared(nextPage);
+				if (BTLatches.shifts() == shifts)
+					break;
+				latches.release(nextPage);
+			}
+
+			Page page = new Page();
+			synchronized (SystemDefs.JavabaseBM) {
+				SystemDefs.JavabaseBM.pinPage(new PageId(nextPage), page, false);
+			}
+			BTLatches.registerScan(nextPage);
+			leave(leaf);
+			BTLeafPage nextLeaf = new BTLeafPage(page, keyType);
+			read(nextLeaf, block, compressed);
+			return nextLeaf;
+		} finally {
+			latches.releaseAll();
+		}
+	}
+
+	/*
+	 * Take a scan off a leaf: unregister and unpin it.
+	 */
+	static void leave(BTLeafPage leaf) throws IOException,
+			InvalidFrameNumberException, ReplacerException,
+			PageUnpinnedException, HashEntryNotFoundException {
+		BTLatches.unregisterScan(leaf.getCurPage().pid);
+		synchronized (SystemDefs.JavabaseBM) {
+			SystemDefs.JavabaseBM.unpinPage(leaf.getCurPage(), false);
+		}
+	}
+}
@@ -0,0 +1,419 @@
+package tests;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import global.*;
+import btree.*;
+
+/*
+ *         CSE 4331/5331 B+ Tree Project (Spring 2025)
+ *         Instructor: Abhishek Santra
+ *
+ */
+
+/**
+ * A load driver for BTreeFile in the manner of YCSB: it loads an integer
+ * index, then runs a mix of reads, inserts, deletes and scans from several
+ * threads for a fixed time, and prints the throughput and latency
+ * percentiles of every interval and of the whole run. With -replay it plays
+ * a key file such as test-insert-file.txt instead.
+ *
+ * <pre>
+ * java tests.BTLoad [-option value]...
+ *   -records n        entries loaded before the run (100000)
+ *   -read w -insert w -delete w -scan w
+ *                     weights of the operations (50 30 10 10)
+ *   -distribution d   uniform or zipfian keys for reads, deletes and
+ *                     scans (zipfian)
+ *   -threads n        threads running the mix (4)
+ *   -duration s       seconds to run (30)
+ *   -interval s       seconds between reports (5)
+ *   -scanlength n     entries per scan (100)
+ *   -pool n           buffer pool pages (1000)
+ *   -dbpages n        pages of the database file (50000)
+ *   -fashion f        naive or full delete (full)
+ *   -seed n           seed of the key choices (4331)
+ *   -replay file      replay file in one thread instead of the mix
+ * </pre>
+ *
+ * Key k has rid <k, k>. The records loaded are keys 0 .. records-1, and
+ * every insert takes the next key after the highest so far. Zipfian keys
+ * are scrambled over 0 .. records-1, so the hot keys are spread over the
+ * tree. A line of a replayed file is a key, which is inserted, or an
+ * operation and a key: "i k", "d k", "r k" (search) or "s k" (scan of
+ * -scanlength keys from k). As in BTTest, a key that is not positive ends
+ * the file.
+ */
+public class BTLoad implements GlobalConst {
+
+	static final int READ = 0;
+	static final int INSERT = 1;
+	static final int DELETE = 2;
+	static final int SCAN = 3;
+	static final String[] NAMES = { "read", "insert", "delete", "scan" };
+
+	int records = 100000;
+	double[] weights = { 50, 30, 10, 10 };
+	boolean zipfian = true;
+	int threads = 4;
+	int duration = 30;
+	int interval = 5;
+	int scanLength = 100;
+	int pool = 1000;
+	int dbPages = 50000;
+	int deleteFashion = DeleteFashion.FULL_DELETE;
+	long seed = 4331;
+	String replay;
+
+	BTreeFile file;
+	final AtomicInteger nextKey = new AtomicInteger();
+	final BTHistogram[] latencies = { new BTHistogram(), new BTHistogram(),
+			new BTHistogram(), new BTHistogram() };
+	Zipfian zipf;
+
+	public static void main(String[] args) {
+		BTLoad load = new BTLoad();
+		try {
+			load.parse(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println("usage: java tests.BTLoad [-records n] [-read w]"
+					+ " [-insert w] [-delete w] [-scan w] [-distribution"
+					+ " uniform|zipfian] [-threads n] [-duration s] [-interval s]"
+					+ " [-scanlength n] [-pool n] [-dbpages n] [-fashion"
+					+ " naive|full] [-seed n] [-replay file]");
+			Runtime.getRuntime().exit(2);
+		}
+		try {
+			load.run();
+		} catch (Exception e) {
+			e.printStackTrace();
+			Runtime.getRuntime().exit(1);
+		}
+	}
+
+	void parse(String[] args) {
+		for (int i = 0; i < args.length; i += 2) {
+			if (i + 1 == args.length)
+				throw new IllegalArgumentException("no value for " + args[i]);
+			String option = args[i];
+			String value = args[i + 1];
+			try {
+				if (option.equals("-records"))
+					records = Integer.parseInt(value);
+				else if (option.equals("-read"))
+					weights[READ] = Double.parseDouble(value);
+				else if (option.equals("-insert"))
+					weights[INSERT] = Double.parseDouble(value);
+				else if (option.equals("-delete"))
+					weights[DELETE] = Double.parseDouble(value);
+				else if (option.equals("-scan"))
+					weights[SCAN] = Double.parseDouble(value);
+				else if (option.equals("-distribution") && value.equals("uniform"))
+					zipfian = false;
+				else if (option.equals("-distribution") && value.equals("zipfian"))
+					zipfian = true;
+				else if (option.equals("-threads"))
+					threads = Integer.parseInt(value);
+				else if (option.equals("-duration"))
+					duration = Integer.parseInt(value);
+				else if (option.equals("-interval"))
+					interval = Integer.parseInt(value);
+				else if (option.equals("-scanlength"))
+					scanLength = Integer.parseInt(value);
+				else if (option.equals("-pool"))
+					pool = Integer.parseInt(value);
+				else if (option.equals("-dbpages"))
+					dbPages = Integer.parseInt(value);
+				else if (option.equals("-fashion") && value.equals("naive"))
+					deleteFashion = DeleteFashion.NAIVE_DELETE;
+				else if (option.equals("-fashion") && value.equals("full"))
+					deleteFashion = DeleteFashion.FULL_DELETE;
+				else if (option.equals("-seed"))
+					seed = Long.parseLong(value);
+				else if (option.equals("-replay"))
+					replay = value;
+				else
+					throw new IllegalArgumentException("bad option " + option
+							+ " " + value);
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("bad number for " + option);
+			}
+		}
+		double total = 0;
+		for (double w : weights) {
+			if (w < 0)
+				throw new IllegalArgumentException("negative weight");
+			total += w;
+		}
+		if (total == 0 || records < 1 || threads < 1 || duration < 1
+				|| interval < 1 || scanLength < 1)
+			throw new IllegalArgumentException("nothing to run");
+	}
+
+	void run() throws Exception {
+		String dbpath = System.getProperty("java.io.tmpdir") + File.separator
+				+ "BTLOAD" + System.getProperty("user.name") + ".minibase-db";
+		new File(dbpath).delete();
+		new SystemDefs(dbpath, dbPages, pool, "Clock");
+		try {
+			file = new BTreeFile("BTLOAD", AttrType.attrInteger, 4, deleteFashion);
+			if (replay != null) {
+				replay();
+			} else {
+				load();
+				runMix();
+			}
+			file.destroyFile();
+		} finally {
+			new File(dbpath).delete();
+		}
+	}
+
+	/*
+	 * Bulk load keys 0 .. records-1, 70% full as a tree built by random
+	 * inserts would be.
+	 */
+	void load() throws Exception {
+		long started = System.nanoTime();
+		file.bulkLoad(new Iterator<KeyDataEntry>() {
+			int k = 0;
+
+			public boolean hasNext() {
+				return k < records;
+			}
+
+			public KeyDataEntry next() {
+				KeyDataEntry entry = new KeyDataEntry(new IntegerKey(k), rid(k));
+				k++;
+				return entry;
+			}
+		}, 0.7f);
+		nextKey.set(records);
+		System.out.println("loaded " + records + " records in "
+				+ (System.nanoTime() - started) / 1000000 + " ms");
+		if (zipfian)
+			zipf = new Zipfian(records);
+	}
+
+	void runMix() throws Exception {
+		final long end = System.nanoTime() + duration * 1000000000L;
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		List<Future<?>> workers = new ArrayList<Future<?>>();
+		for (int t = 0; t < threads; t++) {
+			final SplittableRandom random = new SplittableRandom(seed + t);
+			workers.add(pool.submit(new Callable<Void>() {
+				public Void call() throws Exception {
+					while (System.nanoTime() < end)
+						operation(random);
+					return null;
+				}
+			}));
+		}
+		pool.shutdown();
+		report(workers, end);
+	}
+
+	void operation(SplittableRandom random) throws Exception {
+		double total = 0;
+		for (double w : weights)
+			total += w;
+		double pick = random.nextDouble() * total;
+		int op = 0;
+		while (op < SCAN && pick >= weights[op]) {
+			pick -= weights[op];
+			op++;
+		}
+		int key = op == INSERT ? nextKey.getAndIncrement() : chooseKey(random);
+		long started = System.nanoTime();
+		execute(op, key);
+		latencies[op].record(System.nanoTime() - started);
+	}
+
+	int chooseKey(SplittableRandom random) {
+		if (zipf != null)
+			return zipf.next(random);
+		return random.nextInt(nextKey.get());
+	}
+
+	void execute(int op, int key) throws Exception {
+		switch (op) {
+		case READ:
+			file.search(key);
+			break;
+		case INSERT:
+			file.insert(key, rid(key));
+			break;
+		case DELETE:
+			file.Delete(new IntegerKey(key), rid(key));
+			break;
+		default:
+			BTIntScan scan = file.new_scan(key, key + scanLength - 1);
+			while (scan.get_next())
+				;
+			break;
+		}
+	}
+
+	static RID rid(int key) {
+		return new RID(new PageId(key), key);
+	}
+
+	/*
+	 * Print every interval until the workers are done, then the whole run.
+	 */
+	void report(List<Future<?>> workers, long end) throws Exception {
+		long start = System.nanoTime();
+		long[][] last = new long[latencies.length][];
+		for (int op = 0; op < latencies.length; op++)
+			last[op] = latencies[op].snapshot();
+		long lastTime = start;
+		while (true) {
+			long wake = Math.min(lastTime + interval * 1000000000L, end);
+			long sleep = wake - System.nanoTime();
+			if (sleep > 0)
+				Thread.sleep(sleep / 1000000, (int) (sleep % 1000000));
+			boolean done = System.nanoTime() >= end;
+			if (done)
+				for (Future<?> worker : workers)
+					worker.get();
+			long now = System.nanoTime();
+			StringBuilder line = new StringBuilder();
+			long ops = 0;
+			for (int op = 0; op < latencies.length; op++) {
+				long[] counts = latencies[op].snapshot();
+				long[] delta = new long[counts.length];
+				for (int i = 0; i < counts.length; i++)
+					delta[i] = counts[i] - last[op][i];
+				last[op] = counts;
+				ops += BTHistogram.count(delta);
+				line.append(summary(NAMES[op], delta));
+			}
+			System.out.println(String.format("[%5.1fs] %10.0f ops/s", (now - start)
+					/ 1e9, ops * 1e9 / Math.max(1, now - lastTime))
+					+ line);
+			lastTime = now;
+			if (done)
+				break;
+		}
+
+		long ops = 0;
+		StringBuilder line = new StringBuilder();
+		for (int op = 0; op < latencies.length; op++) {
+			long[] counts = latencies[op].snapshot();
+			ops += BTHistogram.count(counts);
+			line.append(summary(NAMES[op], counts));
+		}
+		System.out.println(String.format("[total ] %10.0f ops/s", ops * 1e9
+				/ Math.max(1, lastTime - start))
+				+ line);
+	}
+
+	static String summary(String name, long[] counts) {
+		long n = BTHistogram.count(counts);
+		if (n == 0)
+			return "";
+		return String.format(" | %s %d p50=%dus p99=%dus p999=%dus max=%dus",
+				name, n, BTHistogram.percentile(counts, 0.5) / 1000,
+				BTHistogram.percentile(counts, 0.99) / 1000,
+				BTHistogram.percentile(counts, 0.999) / 1000,
+				BTHistogram.percentile(counts, 1.0) / 1000);
+	}
+
+	/*
+	 * Play the replay file in order, timing every operation.
+	 */
+	void replay() throws Exception {
+		long start = System.nanoTime();
+		Scanner scanner = new Scanner(new File(replay));
+		try {
+			while (scanner.hasNext()) {
+				int op = INSERT;
+				if (!scanner.hasNextInt()) {
+					String name = scanner.next();
+					if (name.equals("r"))
+						op = READ;
+					else if (name.equals("d"))
+						op = DELETE;
+					else if (name.equals("s"))
+						op = SCAN;
+					else if (!name.equals("i"))
+						throw new IOException("bad operation " + name + " in "
+								+ replay);
+				}
+				int key = scanner.nextInt();
+				if (key <= 0)
+					break;
+				long started = System.nanoTime();
+				execute(op, key);
+				latencies[op].record(System.nanoTime() - started);
+			}
+		} finally {
+			scanner.close();
+		}
+
+		long ops = 0;
+		StringBuilder line = new StringBuilder();
+		for (int op = 0; op < latencies.length; op++) {
+			long[] counts = latencies[op].snapshot();
+			ops += BTHistogram.count(counts);
+			line.append(summary(NAMES[op], counts));
+		}
+		long took = System.nanoTime() - start;
+		System.out.println(String.format("replayed %d operations in %d ms,"
+				+ " %.0f ops/s", ops, took / 1000000, ops * 1e9 / took)
+				+ line);
+	}
+}
+
+/**
+ * Zipfian ranks over 0 .. n-1 with the skew YCSB uses (Gray et al.,
+ * "Quickly generating billion-record synthetic databases"), scrambled by
+ * an FNV hash so that the popular keys are not all next to each other.
+ */
+class Zipfian {
+
+	private static final double THETA = 0.99;
+
+	private final int n;
+	private final double zetan;
+	private final double alpha;
+	private final double eta;
+
+	Zipfian(int n) {
+		this.n = n;
+		double zeta = 0;
+		for (int i = 1; i <= n; i++)
+			zeta += 1 / Math.pow(i, THETA);
+		zetan = zeta;
+		double zeta2 = 1 + 1 / Math.pow(2, THETA);
+		alpha = 1 / (1 - THETA);
+		eta = (1 - Math.pow(2.0 / n, 1 - THETA)) / (1 - zeta2 / zetan);
+	}
+
+	int next(SplittableRandom random) {
+		double u = random.nextDouble();
+		double uz = u * zetan;
+		long rank;
+		if (uz < 1)
+			rank = 0;
+		else if (uz < 1 + Math.pow(0.5, THETA))
+			rank = 1;
+		else
+			rank = Math.min(n - 1, (long) (n * Math.pow(eta * u - eta + 1, alpha)));
+		return (int) Long.remainderUnsigned(fnv(rank), n);
+	}
+
+	private static long fnv(long value) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < 8; i++) {
+			hash ^= value & 0xff;
+			hash *= 0x100000001b3L;
+			value >>>= 8;
+		}
+		return hash;
+	}
+}
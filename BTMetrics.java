@@ -0,0 +1,211 @@
+package btree;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and histograms of one BTreeFile, registered as its
+ * BTMetricsMXBean while the index is open.
+ *
+ * Recording allocates nothing and takes no lock: counts are LongAdders,
+ * which spread threads that count at once over cells of their own, and
+ * each histogram is a BTHistogram, an array of them, one per bucket.
+ * Reading sums the buckets, which is only as exact as a snapshot of
+ * counters that go on changing can be.
+ *
+ * The pages an operation pins are counted per thread, so that each
+ * operation knows its own; begin() marks where the thread's count stood.
+ */
+class BTMetrics implements BTMetricsMXBean {
+
+	static final int INSERT = 0;
+	static final int DELETE = 1;
+	static final int SEARCH = 2;
+	static final int SCAN = 3;
+
+	// pages pinned by the thread so far, and where that stood at begin()
+	private static final ThreadLocal<long[]> threadPins = new ThreadLocal<long[]>() {
+		protected long[] initialValue() {
+			return new long[2];
+		}
+	};
+
+	private final BTreeFile file;
+	private final LongAdder[] operations = { new LongAdder(), new LongAdder(),
+			new LongAdder(), new LongAdder() };
+	private final BTHistogram[] latencies = { new BTHistogram(),
+			new BTHistogram(), new BTHistogram(), new BTHistogram() };
+	private final BTHistogram pinsPerOperation = new BTHistogram();
+	private final LongAdder pins = new LongAdder();
+	private final LongAdder leafSplits = new LongAdder();
+	private final LongAdder indexSplits = new LongAdder();
+	private final LongAdder emptyLeavesSkipped = new LongAdder();
+	private ObjectName name; // null while not registered
+
+	BTMetrics(BTreeFile file) {
+		this.file = file;
+	}
+
+	/**
+	 * An operation starts; pass what this returns to end().
+	 */
+	long begin() {
+		long[] counts = threadPins.get();
+		counts[1] = counts[0];
+		return System.nanoTime();
+	}
+
+	/**
+	 * The operation op (INSERT, ...) that began at `started' is done.
+	 */
+	void end(int op, long started) {
+		latencies[op].record(System.nanoTime() - started);
+		operations[op].increment();
+		long[] counts = threadPins.get();
+		pinsPerOperation.record(counts[0] - counts[1]);
+	}
+
+	/**
+	 * n more operations op were done, timed as a whole elsewhere or not at
+	 * all.
+	 */
+	void add(int op, int n) {
+		operations[op].add(n);
+	}
+
+	void pinned() {
+		pins.increment();
+		threadPins.get()[0]++;
+	}
+
+	void leafSplit() {
+		leafSplits.increment();
+	}
+
+	void indexSplit() {
+		indexSplits.increment();
+	}
+
+	void emptyLeafSkipped() {
+		emptyLeavesSkipped.increment();
+	}
+
+	/**
+	 * Register with the platform MBean server as the index filename. An
+	 * index that cannot be registered, say as it is open twice, goes on
+	 * without.
+	 */
+	synchronized void register(String filename) {
+		try {
+			ObjectName name = new ObjectName("btree:type=BTreeFile,name="
+					+ ObjectName.quote(filename));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+			this.name = name;
+		} catch (JMException e) {
+			// the index works the same unseen
+		}
+	}
+
+	synchronized void unregister() {
+		if (name == null)
+			return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		} catch (JMException e) {
+			// gone already
+		}
+		name = null;
+	}
+
+	public long getInserts() {
+		return operations[INSERT].sum();
+	}
+
+	public long getDeletes() {
+		return operations[DELETE].sum();
+	}
+
+	public long getSearches() {
+		return operations[SEARCH].sum();
+	}
+
+	public long getScans() {
+		return operations[SCAN].sum();
+	}
+
+	public long getLeafSplits() {
+		return leafSplits.sum();
+	}
+
+	public long getIndexSplits() {
+		return indexSplits.sum();
+	}
+
+	public long getEmptyLeavesSkipped() {
+		return emptyLeavesSkipped.sum();
+	}
+
+	public long getPagesPinned() {
+		return pins.sum();
+	}
+
+	public Map<String, Long> getPagesPinnedPerOperation() {
+		return summary(pinsPerOperation);
+	}
+
+	public int getHeight() {
+		try {
+			return file.height();
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public Map<String, Long> getInsertLatency() {
+		return summary(latencies[INSERT]);
+	}
+
+	public Map<String, Long> getDeleteLatency() {
+		return summary(latencies[DELETE]);
+	}
+
+	public Map<String, Long> getSearchLatency() {
+		return summary(latencies[SEARCH]);
+	}
+
+	public Map<String, Long> getScanLatency() {
+		return summary(latencies[SCAN]);
+	}
+
+	/*
+	 * Count, percentiles and max, the upper end of their buckets.
+	 */
+	private static Map<String, Long> summary(BTHistogram histogram) {
+		long[] counts = histogram.snapshot();
+		Map<String, Long> summary = new LinkedHashMap<String, Long>();
+		summary.put("count", BTHistogram.count(counts));
+		summary.put("p50", BTHistogram.percentile(counts, 0.5));
+		summary.put("p90", BTHistogram.percentile(counts, 0.9));
+		summary.put("p99", BTHistogram.percentile(counts, 0.99));
+		summary.put("p999", BTHistogram.percentile(counts, 0.999));
+		summary.put("max", BTHistogram.percentile(counts, 1.0));
+		return summary;
+	}
+
+	public void reset() {
+		for (int op = 0; op < operations.length; op++) {
+			operations[op].reset();
+			latencies[op].reset();
+		}
+		pinsPerOperation.reset();
+		pins.reset();
+		leafSplits.reset();
+		indexSplits.reset();
+		emptyLeavesSkipped.reset();
+	}
+}
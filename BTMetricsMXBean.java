@@ -0,0 +1,60 @@
+package btree;
+
+import java.util.Map;
+
+/**
+ * What a BTreeFile has done since it was opened, as JMX shows it: one
+ * MXBean per open index, named btree:type=BTreeFile,name="filename".
+ *
+ * Latencies are in nanoseconds and, like the pages pinned per operation,
+ * come as a map of count, p50, p90, p99, p999 and max. A percentile is the
+ * upper end of the histogram bucket it falls in, at most 1/16 above the
+ * value itself.
+ */
+public interface BTMetricsMXBean {
+
+	/** Entries inserted, by insert and insertBatch. */
+	long getInserts();
+
+	/** Calls to Delete. */
+	long getDeletes();
+
+	/** Keys looked up, by search and searchBatch. */
+	long getSearches();
+
+	/** Scans opened. */
+	long getScans();
+
+	/** Leaf pages split by inserts. */
+	long getLeafSplits();
+
+	/** Index pages split by inserts, the root included. */
+	long getIndexSplits();
+
+	/** Empty leaves stepped over looking for the start of a run. */
+	long getEmptyLeavesSkipped();
+
+	/** Pages pinned in all. */
+	long getPagesPinned();
+
+	/** Pages pinned by one insert, Delete, search or scan positioning. */
+	Map<String, Long> getPagesPinnedPerOperation();
+
+	/** Levels of the tree, the leaves included; 0 when it is empty. */
+	int getHeight();
+
+	/** Time one insert took. */
+	Map<String, Long> getInsertLatency();
+
+	/** Time one Delete took. */
+	Map<String, Long> getDeleteLatency();
+
+	/** Time one search took. */
+	Map<String, Long> getSearchLatency();
+
+	/** Time a new scan took to find where it starts. */
+	Map<String, Long> getScanLatency();
+
+	/** Start all counts and histograms over. */
+	void reset();
+}
@@ -0,0 +1,661 @@
+package btree;
+
+import global.*;
+import heap.*;
+
+/**
+ * Static helpers that work directly on the byte image of a BT page (the
+ * HFPage header, the slot directory and the records it points to).
+ * BTSortedPage keeps the slot directory in key order, so whole runs of
+ * entries can be moved between pages without decoding them into
+ * KeyDataEntry objects and inserting them one by one.
+ *
+ * Every tree page ends in a trailer that HFPage leaves alone, since its
+ * records are placed below it: the page's high key, written as on a
+ * record, the length of the high key (0 for none) and the length of the
+ * trailer, two bytes each, in the last four bytes of the page. The high key
+ * is not less than any key of the page and its subtree and not greater
+ * than any key to its right; the right-most page of a level has none.
+ *
+ * In an index that keeps counts, an index entry holds the number of leaf
+ * entries under its child between the key and the child, and an index page
+ * keeps the count of its left-most child in the four trailer bytes before
+ * the two lengths.
+ */
+class BTPageBytes implements GlobalConst {
+
+	static int getShort(byte[] data, int offset) {
+		return (short) (((data[offset] & 0xff) << 8) | (data[offset + 1] & 0xff));
+	}
+
+	static void setShort(byte[] data, int offset, int value) {
+		data[offset] = (byte) (value >>> 8);
+		data[offset + 1] = (byte) value;
+	}
+
+	static int getInt(byte[] data, int offset) {
+		return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16)
+				| ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+	}
+
+	static void setInt(byte[] data, int offset, int value) {
+		data[offset] = (byte) (value >>> 24);
+		data[offset + 1] = (byte) (value >>> 16);
+		data[offset + 2] = (byte) (value >>> 8);
+		data[offset + 3] = (byte) value;
+	}
+
+	static int slotCount(byte[] data) {
+		return getShort(data, HFPage.SLOT_CNT);
+	}
+
+	static int slotLength(byte[] data, int slot) {
+		return getShort(data, HFPage.DPFIXED + slot * HFPage.SIZE_OF_SLOT);
+	}
+
+	static int slotOffset(byte[] data, int slot) {
+		return getShort(data, HFPage.DPFIXED + slot * HFPage.SIZE_OF_SLOT + 2);
+	}
+
+	static void setSlot(byte[] data, int slot, int length, int offset) {
+		setShort(data, HFPage.DPFIXED + slot * HFPage.SIZE_OF_SLOT, length);
+		setShort(data, HFPage.DPFIXED + slot * HFPage.SIZE_OF_SLOT + 2, offset);
+	}
+
+	/*
+	 * Rewrite slot count, used pointer and free space after the slot
+	 * directory or the record area was changed behind HFPage's back.
+	 */
+	private static void setHeader(byte[] data, int slotCnt, int usedPtr) {
+		setShort(data, HFPage.SLOT_CNT, slotCnt);
+		setShort(data, HFPage.USED_PTR, usedPtr);
+		setShort(data, HFPage.FREE_SPACE, usedPtr - HFPage.DPFIXED - slotCnt
+				* HFPage.SIZE_OF_SLOT);
+	}
+
+	/**
+	 * Decode the key of the given slot. Only the key object is created.
+	 */
+	static KeyClass keyAt(byte[] data, int slot, int keyType)
+			throws KeyNotMatchException {
+		int offset = slotOffset(data, slot);
+		if (keyType == AttrType.attrInteger)
+			return new IntegerKey(getInt(data, offset));
+		if (keyType == AttrType.attrString)
+			return new StringKey(getString(data, offset));
+		throw new KeyNotMatchException(null, "key types do not match");
+	}
+
+	/*
+	 * Decode a string written by DataOutputStream.writeUTF (two byte length
+	 * followed by modified UTF-8), which is how StringKeys sit on a page.
+	 */
+	private static String getString(byte[] data, int offset) {
+		return getUTF(data, offset + 2, offset + 2
+				+ (getShort(data, offset) & 0xffff));
+	}
+
+	/**
+	 * Decode the modified UTF-8 bytes in [pos, end).
+	 */
+	static String getUTF(byte[] data, int pos, int end) {
+		char[] chars = new char[end - pos];
+		int n = 0;
+		while (pos < end) {
+			int b = data[pos] & 0xff;
+			if (b < 0x80) {
+				chars[n++] = (char) b;
+				pos += 1;
+			} else if ((b & 0xe0) == 0xc0) {
+				chars[n++] = (char) (((b & 0x1f) << 6) | (data[pos + 1] & 0x3f));
+				pos += 2;
+			} else {
+				chars[n++] = (char) (((b & 0x0f) << 12)
+						| ((data[pos + 1] & 0x3f) << 6) | (data[pos + 2] & 0x3f));
+				pos += 3;
+			}
+		}
+		return new String(chars, 0, n);
+	}
+
+	/**
+	 * Child page id stored in an index entry (the last four bytes).
+	 */
+	static int childAt(byte[] data, int slot) {
+		return getInt(data, slotOffset(data, slot) + slotLength(data, slot) - 4);
+	}
+
+	/**
+	 * Number of bytes the key takes on a page.
+	 */
+	static int keyLength(KeyClass key) throws KeyNotMatchException {
+		if (key instanceof IntegerKey)
+			return 4;
+		if (key instanceof StringKey)
+			return 2 + utfLength(((StringKey) key).getKey());
+		throw new KeyNotMatchException(null, "key types do not match");
+	}
+
+	/**
+	 * Number of bytes s takes in modified UTF-8.
+	 */
+	static int utfLength(String s) {
+		int length = 0;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			length += (c >= 0x0001 && c <= 0x007f) ? 1 : (c <= 0x07ff) ? 2 : 3;
+		}
+		return length;
+	}
+
+	/*
+	 * Write the key at offset in the same format BT.getBytesFromEntry uses.
+	 */
+	private static void writeKey(byte[] data, int offset, KeyClass key)
+			throws KeyNotMatchException {
+		if (key instanceof IntegerKey) {
+			setInt(data, offset, ((IntegerKey) key).getKey().intValue());
+			return;
+		}
+		int end = putUTF(((StringKey) key).getKey(), data, offset + 2);
+		setShort(data, offset, end - offset - 2);
+	}
+
+	/**
+	 * Write s as modified UTF-8 at pos and return the position after it.
+	 */
+	static int putUTF(String s, byte[] data, int pos) {
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c >= 0x0001 && c <= 0x007f) {
+				data[pos++] = (byte) c;
+			} else if (c <= 0x07ff) {
+				data[pos++] = (byte) (0xc0 | (c >> 6));
+				data[pos++] = (byte) (0x80 | (c & 0x3f));
+			} else {
+				data[pos++] = (byte) (0xe0 | (c >> 12));
+				data[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+				data[pos++] = (byte) (0x80 | (c & 0x3f));
+			}
+		}
+		return pos;
+	}
+
+	/**
+	 * Compare key with the key stored in the given slot, with the same sign
+	 * as BT.keyCompare(key, slotKey). Nothing is decoded into objects.
+	 */
+	static int compareKey(KeyClass key, byte[] data, int slot)
+			throws KeyNotMatchException {
+		int offset = slotOffset(data, slot);
+		if (key instanceof IntegerKey)
+			return Integer.compare(((IntegerKey) key).getKey().intValue(),
+					getInt(data, offset));
+		if (!(key instanceof StringKey))
+			throw new KeyNotMatchException(null, "key types do not match");
+
+		return compareUTF(((StringKey) key).getKey(), data, offset + 2, offset
+				+ 2 + (getShort(data, offset) & 0xffff));
+	}
+
+	/**
+	 * Compare s with the modified UTF-8 string in [pos, end), char by char
+	 * like String.compareTo.
+	 */
+	static int compareUTF(String s, byte[] data, int pos, int end) {
+		int i = 0;
+		while (i < s.length() && pos < end) {
+			int b = data[pos] & 0xff;
+			int c;
+			if (b < 0x80) {
+				c = b;
+				pos += 1;
+			} else if ((b & 0xe0) == 0xc0) {
+				c = ((b & 0x1f) << 6) | (data[pos + 1] & 0x3f);
+				pos += 2;
+			} else {
+				c = ((b & 0x0f) << 12) | ((data[pos + 1] & 0x3f) << 6)
+						| (data[pos + 2] & 0x3f);
+				pos += 3;
+			}
+			if (s.charAt(i) != c)
+				return s.charAt(i) - c;
+			i++;
+		}
+		if (i < s.length())
+			return 1;
+		return pos < end ? -1 : 0;
+	}
+
+	/**
+	 * The shortest separator s with last < s <= first, for an index entry
+	 * between a page ending in last and the page after it starting with
+	 * first. For string keys that is the prefix of first one character
+	 * past what it has in common with last; when the two are equal (a run
+	 * of duplicates split across the pages) it is first itself. Integer
+	 * keys are returned as they are.
+	 */
+	static KeyClass separator(KeyClass last, KeyClass first) {
+		if (!(last instanceof StringKey) || !(first instanceof StringKey))
+			return first;
+		String a = ((StringKey) last).getKey();
+		String b = ((StringKey) first).getKey();
+		int n = Math.min(a.length(), b.length());
+		int i = 0;
+		while (i < n && a.charAt(i) == b.charAt(i))
+			i++;
+		if (i + 1 >= b.length())
+			return first;
+		return new StringKey(b.substring(0, i + 1));
+	}
+
+	/**
+	 * Binary search for the first slot whose key is greater than key, which
+	 * is where BTSortedPage.insertRecord puts a new entry (after its
+	 * duplicates).
+	 */
+	static int upperBound(byte[] data, KeyClass key) throws KeyNotMatchException {
+		int lo = 0;
+		int hi = slotCount(data);
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (compareKey(key, data, mid) >= 0)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * Binary search for the first slot whose key is not less than key.
+	 */
+	static int lowerBound(byte[] data, KeyClass key) throws KeyNotMatchException {
+		int lo = 0;
+		int hi = slotCount(data);
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (compareKey(key, data, mid) > 0)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/*
+	 * Primitive int-key versions of the above, for pages of an
+	 * AttrType.attrInteger index: the key is the first four bytes of every
+	 * record, so nothing is decoded or boxed to compare it.
+	 */
+
+	static int intKeyAt(byte[] data, int slot) {
+		return getInt(data, slotOffset(data, slot));
+	}
+
+	static int upperBound(byte[] data, int key) {
+		int lo = 0;
+		int hi = slotCount(data);
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (key >= intKeyAt(data, mid))
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	static int lowerBound(byte[] data, int key) {
+		int lo = 0;
+		int hi = slotCount(data);
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (key > intKeyAt(data, mid))
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * Insert the leaf entry <key, rid> of an integer index as slot pos.
+	 */
+	static void insertLeafEntry(byte[] data, int pos, int key, RID rid) {
+		int offset = insertSlot(data, pos, 12);
+		setInt(data, offset, key);
+		setInt(data, offset + 4, rid.slotNo);
+		setInt(data, offset + 8, rid.pageNo.pid);
+	}
+
+	/**
+	 * Page and slot number of the rid in the given leaf slot.
+	 */
+	static int ridPageAt(byte[] data, int slot) {
+		return getInt(data, slotOffset(data, slot) + slotLength(data, slot) - 4);
+	}
+
+	static int ridSlotAt(byte[] data, int slot) {
+		return getInt(data, slotOffset(data, slot) + slotLength(data, slot) - 8);
+	}
+
+	/**
+	 * Child of an index page that holds the left-most occurrence of key:
+	 * the child of the last entry less than key. Duplicates of a separator
+	 * may sit left of it, so this goes left on equal keys.
+	 */
+	static int firstChildFor(byte[] data, KeyClass key) throws KeyNotMatchException {
+		int pos = lowerBound(data, key);
+		return pos == 0 ? getInt(data, HFPage.PREV_PAGE) : childAt(data, pos - 1);
+	}
+
+	/**
+	 * Child of an index page that holds the right-most occurrence of key:
+	 * the child of the last entry not greater than key, the last child for a
+	 * null key.
+	 */
+	static int lastChildFor(byte[] data, KeyClass key) throws KeyNotMatchException {
+		int pos = key == null ? slotCount(data) : upperBound(data, key);
+		return pos == 0 ? getInt(data, HFPage.PREV_PAGE) : childAt(data, pos - 1);
+	}
+
+	/**
+	 * True if the leaf entry in the given slot points at rid.
+	 */
+	static boolean hasRid(byte[] data, int slot, RID rid) {
+		return ridSlotAt(data, slot) == rid.slotNo
+				&& ridPageAt(data, slot) == rid.pageNo.pid;
+	}
+
+	/*
+	 * Open a slot at pos for a record of the given length and return the
+	 * record offset. The caller checks there is room for it.
+	 */
+	static int insertSlot(byte[] data, int pos, int length) {
+		int count = slotCount(data);
+		int usedPtr = getShort(data, HFPage.USED_PTR) - length;
+		int slotPos = HFPage.DPFIXED + pos * HFPage.SIZE_OF_SLOT;
+		System.arraycopy(data, slotPos, data, slotPos + HFPage.SIZE_OF_SLOT,
+				(count - pos) * HFPage.SIZE_OF_SLOT);
+		setSlot(data, pos, length, usedPtr);
+		setHeader(data, count + 1, usedPtr);
+		return usedPtr;
+	}
+
+	/**
+	 * Insert the index entry <key, child> as slot pos.
+	 */
+	static void insertIndexEntry(byte[] data, int pos, KeyClass key, int child)
+			throws KeyNotMatchException {
+		int length = keyLength(key) + 4;
+		int offset = insertSlot(data, pos, length);
+		writeKey(data, offset, key);
+		setInt(data, offset + length - 4, child);
+	}
+
+	/**
+	 * Insert the index entry <key, count, child> of an index that keeps
+	 * counts as slot pos.
+	 */
+	static void insertIndexEntry(byte[] data, int pos, KeyClass key,
+			int count, int child) throws KeyNotMatchException {
+		int length = keyLength(key) + 8;
+		int offset = insertSlot(data, pos, length);
+		writeKey(data, offset, key);
+		setInt(data, offset + length - 8, count);
+		setInt(data, offset + length - 4, child);
+	}
+
+	/**
+	 * Number of leaf entries under the child of the given slot of an index
+	 * page that keeps counts; slot -1 is the left-most child.
+	 */
+	static int childCount(byte[] data, int slot) {
+		if (slot < 0)
+			return getInt(data, MAX_SPACE - 8);
+		return getInt(data, slotOffset(data, slot) + slotLength(data, slot) - 8);
+	}
+
+	static void setChildCount(byte[] data, int slot, int count) {
+		if (slot < 0)
+			setInt(data, MAX_SPACE - 8, count);
+		else
+			setInt(data, slotOffset(data, slot) + slotLength(data, slot) - 8,
+					count);
+	}
+
+	/**
+	 * Number of leaf entries under an index page that keeps counts.
+	 */
+	static int subtreeCount(byte[] data) {
+		int count = 0;
+		for (int slot = -1; slot < slotCount(data); slot++)
+			count += childCount(data, slot);
+		return count;
+	}
+
+	/**
+	 * Append the entries in slots [from, slotCount) of src to dst, keeping
+	 * their order. src is left as it is; the caller truncates it and makes
+	 * sure dst has room for them.
+	 */
+	static void copySlots(byte[] src, int from, byte[] dst) {
+		copySlots(src, from, slotCount(src), dst);
+	}
+
+	/**
+	 * Append the entries in slots [from, to) of src to dst.
+	 */
+	static void copySlots(byte[] src, int from, int count, byte[] dst) {
+		int dstCount = slotCount(dst);
+		int dstUsed = getShort(dst, HFPage.USED_PTR);
+
+		for (int i = from; i < count; i++) {
+			int length = slotLength(src, i);
+			dstUsed -= length;
+			System.arraycopy(src, slotOffset(src, i), dst, dstUsed, length);
+			setSlot(dst, dstCount++, length, dstUsed);
+		}
+		setHeader(dst, dstCount, dstUsed);
+	}
+
+	/**
+	 * Insert the entries in slots [from, slotCount) of src in front of the
+	 * entries of dst. src is left as it is.
+	 */
+	static void prependSlots(byte[] src, int from, byte[] dst) {
+		for (int i = slotCount(src) - 1; i >= from; i--) {
+			int length = slotLength(src, i);
+			System.arraycopy(src, slotOffset(src, i), dst,
+					insertSlot(dst, 0, length), length);
+		}
+	}
+
+	/**
+	 * Drop the entries in slots [from, to) and pack the page again.
+	 */
+	static void removeSlots(byte[] data, int from, int to) {
+		int count = slotCount(data);
+		System.arraycopy(data, HFPage.DPFIXED + to * HFPage.SIZE_OF_SLOT, data,
+				HFPage.DPFIXED + from * HFPage.SIZE_OF_SLOT, (count - to)
+						* HFPage.SIZE_OF_SLOT);
+		truncate(data, count - (to - from));
+	}
+
+	/**
+	 * Give the index entry in the given slot a new key, keeping what follows
+	 * the key (its child, and its count if it has one). The caller checks the
+	 * page has room if the new key is longer.
+	 */
+	static void replaceKey(byte[] data, int slot, KeyClass key)
+			throws KeyNotMatchException {
+		int offset = slotOffset(data, slot);
+		int oldKeyLength = key instanceof IntegerKey ? 4 : 2 + (getShort(data,
+				offset) & 0xffff);
+		byte[] rest = java.util.Arrays.copyOfRange(data, offset + oldKeyLength,
+				offset + slotLength(data, slot));
+		removeSlots(data, slot, slot + 1);
+		int length = keyLength(key) + rest.length;
+		offset = insertSlot(data, slot, length);
+		writeKey(data, offset, key);
+		System.arraycopy(rest, 0, data, offset + length - rest.length, rest.length);
+	}
+
+	/**
+	 * Bytes taken by records and their slots.
+	 */
+	static int usedSpace(byte[] data) {
+		return recordEnd(data) - getShort(data, HFPage.USED_PTR)
+				+ slotCount(data) * HFPage.SIZE_OF_SLOT;
+	}
+
+	/**
+	 * Bytes an empty page has for records and their slots.
+	 */
+	static int capacity(byte[] data) {
+		return recordEnd(data) - HFPage.DPFIXED;
+	}
+
+	/**
+	 * Bytes left between the slot directory and the records.
+	 */
+	static int freeSpace(byte[] data) {
+		return getShort(data, HFPage.FREE_SPACE);
+	}
+
+	/**
+	 * Size of the entry in the given slot, slot included.
+	 */
+	static int entrySpace(byte[] data, int slot) {
+		return slotLength(data, slot) + HFPage.SIZE_OF_SLOT;
+	}
+
+	/**
+	 * Drop every entry from slot `keep' on and pack the remaining records
+	 * against the trailer again.
+	 */
+	static void truncate(byte[] data, int keep) {
+		// Records are placed back highest offset first, so a record only
+		// ever moves towards the end of the page, over bytes that are
+		// either dropped or already placed. The kept slots are sorted by
+		// offset once, each as offset << 16 | slot.
+		long[] byOffset = new long[keep];
+		for (int i = 0; i < keep; i++)
+			byOffset[i] = (long) slotOffset(data, i) << 16 | i;
+		java.util.Arrays.sort(byOffset);
+		int usedPtr = recordEnd(data);
+		for (int n = keep - 1; n >= 0; n--) {
+			int slot = (int) (byOffset[n] & 0xffff);
+			int offset = (int) (byOffset[n] >>> 16);
+			int length = slotLength(data, slot);
+			usedPtr -= length;
+			System.arraycopy(data, offset, data, usedPtr, length);
+			setSlot(data, slot, length, usedPtr);
+		}
+		setHeader(data, keep, usedPtr);
+	}
+
+	/**
+	 * Length of the trailer a page of an index with the given max keysize
+	 * gets.
+	 */
+	static int trailerLength(int maxKeySize) {
+		return maxKeySize + 4;
+	}
+
+	/**
+	 * Give a freshly initialized page a trailer without a high key, with
+	 * room for the count of the left-most child if `counted'.
+	 */
+	static void initTrailer(byte[] data, int maxKeySize, boolean counted) {
+		int length = trailerLength(maxKeySize) + (counted ? 4 : 0);
+		setShort(data, MAX_SPACE - 4, 0);
+		setShort(data, MAX_SPACE - 2, length);
+		setHeader(data, 0, MAX_SPACE - length);
+	}
+
+	/**
+	 * Offset where the trailer starts, the records end.
+	 */
+	static int recordEnd(byte[] data) {
+		return MAX_SPACE - getShort(data, MAX_SPACE - 2);
+	}
+
+	/**
+	 * The high key of a page, or null if it has none.
+	 */
+	static KeyClass highKey(byte[] data, int keyType)
+			throws KeyNotMatchException {
+		if (getShort(data, MAX_SPACE - 4) == 0)
+			return null;
+		int offset = recordEnd(data);
+		if (keyType == AttrType.attrInteger)
+			return new IntegerKey(getInt(data, offset));
+		if (keyType == AttrType.attrString)
+			return new StringKey(getString(data, offset));
+		throw new KeyNotMatchException(null, "key types do not match");
+	}
+
+	/**
+	 * Set the high key of a page; null for none. It fits the trailer as it
+	 * is no longer than the max keysize.
+	 */
+	static void setHighKey(byte[] data, KeyClass key)
+			throws KeyNotMatchException {
+		if (key == null) {
+			setShort(data, MAX_SPACE - 4, 0);
+			return;
+		}
+		writeKey(data, recordEnd(data), key);
+		setShort(data, MAX_SPACE - 4, keyLength(key));
+	}
+
+	/**
+	 * Give dst the high key of src. Both are pages of one index.
+	 */
+	static void copyHighKey(byte[] src, byte[] dst) {
+		int length = getShort(src, MAX_SPACE - 4);
+		System.arraycopy(src, recordEnd(src), dst, recordEnd(dst), length);
+		setShort(dst, MAX_SPACE - 4, length);
+	}
+
+	/**
+	 * Whether key is past the high key of a page, so that it belongs to a
+	 * page further right.
+	 */
+	static boolean pastHighKey(KeyClass key, byte[] data)
+			throws KeyNotMatchException {
+		return getShort(data, MAX_SPACE - 4) != 0 && compareHighKey(key, data) > 0;
+	}
+
+	/**
+	 * Whether a page further right may hold key: the page has a high key and
+	 * key is not less than it. A null key stands for the end of the index.
+	 */
+	static boolean reachesHighKey(KeyClass key, byte[] data)
+			throws KeyNotMatchException {
+		return getShort(data, MAX_SPACE - 4) != 0
+				&& (key == null || compareHighKey(key, data) >= 0);
+	}
+
+	/*
+	 * Compare key with the high key of a page that has one.
+	 */
+	private static int compareHighKey(KeyClass key, byte[] data)
+			throws KeyNotMatchException {
+		int offset = recordEnd(data);
+		if (key instanceof IntegerKey)
+			return Integer.compare(((IntegerKey) key).getKey().intValue(),
+					getInt(data, offset));
+		if (!(key instanceof StringKey))
+			throw new KeyNotMatchException(null, "key types do not match");
+		return compareUTF(((StringKey) key).getKey(), data, offset + 2, offset
+				+ 2 + (getShort(data, offset) & 0xffff));
+	}
+
+	static boolean pastHighKey(int key, byte[] data) {
+		return getShort(data, MAX_SPACE - 4) != 0
+				&& key > getInt(data, recordEnd(data));
+	}
+}
@@ -0,0 +1,159 @@
+package btree;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import global.*;
+import heap.*;
+import diskmgr.*;
+
+/**
+ * Read-ahead for a scan: while the scan works through a leaf, a background
+ * thread reads the next leaves along the next links into the buffer pool,
+ * so that the scan finds them there when it gets to them.
+ *
+ * Each leaf read ahead is pinned and unpinned again at once. It holds no
+ * frame and does not keep full delete from freeing it; if the pool needs
+ * the frame before the scan gets there, the scan reads the page itself.
+ * The next link of a page is read under a shared latch, and the pages are
+ * reached inside an optimistic read (BTLatches.beginOptimistic), so that a
+ * page full delete takes out of the tree meanwhile is not freed under the
+ * reader.
+ *
+ * Calls into the buffer manager are serialized, so a read ahead does not
+ * overlap the scan's own buffer calls, only the work it does on a leaf.
+ */
+class BTReadAhead implements GlobalConst {
+
+	private static final ExecutorService readers = Executors
+			.newCachedThreadPool(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "btree-read-ahead");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	private final int leaves; // how far ahead of the scan to read
+
+	// guarded by this
+	private int scanPid; // the leaf the scan is on, pinned by the scan
+	private final ArrayDeque<Integer> read = new ArrayDeque<Integer>(); // past scanPid, in order
+	private long shifts; // BTLatches.shifts() when `read' was started from scanPid
+	private boolean running;
+	private boolean done; // the end of the leaf level was reached, or the scan closed
+
+	BTReadAhead(int leaves) {
+		this.leaves = leaves;
+	}
+
+	/**
+	 * The scan moved onto leaf pid, which it holds pinned. Leaves read ahead
+	 * up to it are done with; reading goes on from there.
+	 */
+	synchronized void moved(int pid) {
+		scanPid = pid;
+		while (!read.isEmpty() && read.peekFirst() != pid)
+			read.pollFirst();
+		if (read.isEmpty()) {
+			// not a page read ahead, or not reached along them: start over
+			done = false;
+		} else {
+			read.pollFirst();
+		}
+		if (!running && !done && read.size() < leaves) {
+			running = true;
+			readers.execute(new Runnable() {
+				public void run() {
+					readAhead();
+				}
+			});
+		}
+	}
+
+	/**
+	 * The scan is done; stop reading ahead.
+	 */
+	synchronized void close() {
+		done = true;
+		read.clear();
+	}
+
+	private void readAhead() {
+		BTLatches latches = new BTLatches();
+		BTLatches.beginOptimistic();
+		try {
+			while (true) {
+				int from;
+				synchronized (this) {
+					if (done || read.size() >= leaves) {
+						running = false;
+						return;
+					}
+					// a page read ahead may have been freed if full delete moved
+					// things since; the scan's own leaf has not
+					if (read.isEmpty() || shifts != BTLatches.shifts()) {
+						read.clear();
+						shifts = BTLatches.shifts();
+						from = scanPid;
+					} else {
+						from = read.peekLast();
+					}
+				}
+
+				int next = nextPage(from, latches);
+				if (next != INVALID_PAGE) {
+					PageId pageno = new PageId(next);
+					synchronized (SystemDefs.JavabaseBM) {
+						SystemDefs.JavabaseBM.pinPage(pageno, new Page(), false);
+						SystemDefs.JavabaseBM.unpinPage(pageno, false);
+					}
+				}
+
+				synchronized (this) {
+					boolean moved = read.isEmpty() ? from != scanPid
+							: from != read.peekLast();
+					if (moved)
+						continue; // the scan got ahead of us meanwhile
+					if (next == INVALID_PAGE) {
+						done = true;
+						running = false;
+						return;
+					}
+					read.addLast(next);
+				}
+			}
+		} catch (Exception e) {
+			// it was only a hint: the scan reads the page when it gets there
+			synchronized (this) {
+				running = false;
+				done = true;
+			}
+		} finally {
+			latches.releaseAll();
+			BTLatches.endOptimistic();
+		}
+	}
+
+	/*
+	 * The next link of leaf pid, read under a shared latch.
+	 */
+	private static int nextPage(int pid, BTLatches latches) throws Exception {
+		PageId pageno = new PageId(pid);
+		Page page = new Page();
+		synchronized (SystemDefs.JavabaseBM) {
+			SystemDefs.JavabaseBM.pinPage(pageno, page, false);
+		}
+		try {
+			latches.shared(pid);
+			int next = BTPageBytes.getInt(page.getpage(), HFPage.NEXT_PAGE);
+			latches.release(pid);
+			return next;
+		} finally {
+			synchronized (SystemDefs.JavabaseBM) {
+				SystemDefs.JavabaseBM.unpinPage(pageno, false);
+			}
+		}
+	}
+}
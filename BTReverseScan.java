@@ -0,0 +1,202 @@
+package btree;
+
+import java.io.*;
+import global.*;
+import heap.*;
+import bufmgr.*;
+import diskmgr.*;
+
+/**
+ * The BTFileScan that BTreeFile.new_reverse_scan returns: the entries of a
+ * range in descending order. Like BTLeafScan it copies each leaf into a
+ * BTLeafBlock under a shared latch and keeps the leaf it is on pinned and
+ * registered, but it hands the entries out from the end of the copy and
+ * moves on along the leaves' prev links. endkey is the low end of the
+ * range here.
+ *
+ * Nothing the scan has returned can come back: a split moves entries right
+ * into a new leaf between the one it splits and its right neighbour, which
+ * is left of the leaf the scan is on, and full delete does not move entries
+ * into or out of a registered leaf.
+ */
+public class BTReverseScan extends BTFileScan {
+
+	private final boolean compressed;
+	private BTLeafBlock block;
+	private int next; // entry of block that get_next returns next
+	private int current = -1; // entry of block get_next returned last
+	private KeyClass hiKey;
+
+	BTReverseScan(int keyType, boolean compressed) {
+		this.keyType = keyType;
+		this.compressed = compressed;
+		block = new BTLeafBlock(keyType);
+	}
+
+	/*
+	 * Start at the last entry not greater than hi_key on the leaf set up by
+	 * new_reverse_scan, which the caller holds latched.
+	 */
+	void start(KeyClass hi_key) throws IOException, KeyNotMatchException {
+		hiKey = hi_key;
+		if (leafPage != null) {
+			BTLeafScan.read(leafPage, block, compressed);
+			BTLatches.registerScan(leafPage.getCurPage().pid);
+		}
+		next = hi_key == null ? block.count - 1 : block.upperBound(hi_key) - 1;
+	}
+
+	/**
+	 * Iterate once (during a scan).
+	 *
+	 * @return null if done; otherwise next KeyDataEntry
+	 * @exception ScanIteratorException
+	 *                iterator error
+	 */
+	public KeyDataEntry get_next() throws ScanIteratorException {
+		try {
+			while (leafPage != null) {
+				if (next < 0) {
+					leafPage = prevLeaf(leafPage, block, compressed, keyType);
+					next = block.count - 1;
+					current = -1;
+					continue;
+				}
+
+				int i = next--;
+				KeyClass key = block.keyAt(i);
+				if (hiKey != null && BT.keyCompare(key, hiKey) > 0)
+					continue; // past the range, on a leaf that changed meanwhile
+				if (endkey != null && BT.keyCompare(key, endkey) < 0) {
+					DestroyBTreeFileScan();
+					return null;
+				}
+				current = i;
+				curRid.pageNo = leafPage.getCurPage();
+				curRid.slotNo = i;
+				return new KeyDataEntry(key, new RID(new PageId(
+						block.ridPages[i]), block.ridSlots[i]));
+			}
+			return null;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanIteratorException(e, "");
+		}
+	}
+
+	/**
+	 * Delete currently-being-scanned(i.e., just scanned) data entry.
+	 *
+	 * @exception ScanDeleteException
+	 *                delete error when scan
+	 */
+	public void delete_current() throws ScanDeleteException {
+		if (leafPage == null || current < 0)
+			throw new ScanDeleteException(null, "no current entry");
+		try {
+			bfile.Delete(block.keyAt(current), new RID(new PageId(
+					block.ridPages[current]), block.ridSlots[current]));
+			current = -1;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanDeleteException(e, "");
+		}
+	}
+
+	/**
+	 * Unpin the leaf the scan is on. Called by get_next at the end of the
+	 * range; call it when a scan is abandoned before that.
+	 */
+	public void DestroyBTreeFileScan() throws IOException,
+			InvalidFrameNumberException, ReplacerException,
+			PageUnpinnedException, HashEntryNotFoundException {
+		if (leafPage != null) {
+			BTLeafScan.leave(leafPage);
+			leafPage = null;
+		}
+	}
+
+	/*
+	 * Move a scan from `leaf' to the leaf before it and copy that one into
+	 * block, holding one latch at a time. Returns it pinned and registered,
+	 * or null at the start of the leaf level; `leaf' is left either way.
+	 *
+	 * The prev link may be behind: the leaf it leads to may have split since
+	 * it was read, and the leaf before `leaf' is then found by following next
+	 * links from there. If BTLatches.shifts changes meanwhile, a page on the
+	 * way may have been freed, and the prev link is read again; `leaf'
+	 * itself stays, as full delete does not merge a leaf a scan is on.
+	 */
+	static BTLeafPage prevLeaf(BTLeafPage leaf, BTLeafBlock block,
+			boolean compressed, int keyType) throws IOException,
+			ConstructPageException, InvalidFrameNumberException,
+			ReplacerException, PageUnpinnedException,
+			HashEntryNotFoundException, BufMgrException, HashOperationException,
+			PageNotReadException, BufferPoolExceededException,
+			PagePinnedException {
+		BTLatches latches = new BTLatches();
+		int pid = leaf.getCurPage().pid;
+		try {
+			Page page = null;
+			int prevPage = INVALID_PAGE;
+			while (page == null) {
+				latches.shared(pid);
+				prevPage = BTPageBytes.getInt(leaf.getpage(), HFPage.PREV_PAGE);
+				long shifts = BTLatches.shifts();
+				latches.release(pid);
+				if (prevPage == INVALID_PAGE) {
+					BTLeafScan.leave(leaf);
+					return null;
+				}
+
+				// ASSERTION
+				// - prevPage is latched, and pinned as page once it is
+				//   known not to have been freed
+				latches.shared(prevPage);
+				while (BTLatches.shifts() == shifts) {
+					page = pin(prevPage);
+					int nextPage = BTPageBytes.getInt(page.getpage(),
+							HFPage.NEXT_PAGE);
+					if (nextPage == pid)
+						break;
+					unpin(prevPage);
+					page = null;
+					latches.release(prevPage);
+					if (nextPage == INVALID_PAGE)
+						break;
+					prevPage = nextPage;
+					latches.shared(prevPage);
+				}
+				if (page == null)
+					latches.releaseAll();
+			}
+
+			BTLatches.registerScan(prevPage);
+			BTLeafScan.leave(leaf);
+			BTLeafPage prevLeaf = new BTLeafPage(page, keyType);
+			BTLeafScan.read(prevLeaf, block, compressed);
+			return prevLeaf;
+		} finally {
+			latches.releaseAll();
+		}
+	}
+
+	private static Page pin(int pid) throws IOException, ReplacerException,
+			HashOperationException, PageUnpinnedException,
+			InvalidFrameNumberException, PageNotReadException,
+			BufferPoolExceededException, PagePinnedException, BufMgrException {
+		Page page = new Page();
+		synchronized (SystemDefs.JavabaseBM) {
+			SystemDefs.JavabaseBM.pinPage(new PageId(pid), page, false);
+		}
+		return page;
+	}
+
+	private static void unpin(int pid) throws IOException, ReplacerException,
+			PageUnpinnedException, HashEntryNotFoundException,
+			InvalidFrameNumberException {
+		synchronized (SystemDefs.JavabaseBM) {
+			SystemDefs.JavabaseBM.unpinPage(new PageId(pid), false);
+		}
+	}
+}
@@ -0,0 +1,248 @@
+package tests;
+
+import java.io.*;
+import java.util.*;
+
+import btree.*;
+import global.*;
+
+/*
+ *         CSE 4331/5331 B+ Tree Project (Spring 2025)
+ *         Instructor: Abhishek Santra
+ *
+ */
+
+/**
+ * Scans against duplicates: the same <key, rid> inserted many times, so
+ * that its copies lie on several leaves, has to come back from every kind
+ * of scan as many times as it went in, and splits under an open scan must
+ * not bring back what it returned already.
+ */
+class BTScanDriver extends TestDriver implements GlobalConst {
+
+	private static final int RID_SLOTS = 10; // few rids, many exact duplicates
+
+	private int fileNo = 0;
+
+	public BTScanDriver() {
+		super("btscantest");
+	}
+
+	public boolean runTests() {
+		new File(dbpath).delete();
+		new SystemDefs(dbpath, 5000, 200, "Clock");
+		boolean pass = super.runTests();
+		new File(dbpath).delete();
+		return pass;
+	}
+
+	protected String testName() {
+		return "B+ tree scan";
+	}
+
+	/**
+	 * One <key, rid> inserted across leaf splits, plain leaves.
+	 */
+	protected boolean test1() {
+		return sameEntryAcrossSplits(LeafFormat.PLAIN);
+	}
+
+	/**
+	 * One <key, rid> inserted across leaf splits, compressed leaves.
+	 */
+	protected boolean test2() {
+		return sameEntryAcrossSplits(LeafFormat.COMPRESSED);
+	}
+
+	/**
+	 * Random keys and rids against a count of what was inserted.
+	 */
+	protected boolean test3() {
+		return randomDuplicates(LeafFormat.PLAIN)
+				&& randomDuplicates(LeafFormat.COMPRESSED);
+	}
+
+	/**
+	 * Splits behind an open scan.
+	 */
+	protected boolean test4() {
+		return splitsBehindScan(LeafFormat.PLAIN)
+				&& splitsBehindScan(LeafFormat.COMPRESSED);
+	}
+
+	private boolean sameEntryAcrossSplits(int format) {
+		System.out.println("  - <100, [100 100]> 300 times among 1..400, "
+				+ (format == LeafFormat.PLAIN ? "plain" : "compressed"));
+		try {
+			BTreeFile file = create(format);
+			Map<String, Integer> model = new HashMap<String, Integer>();
+			for (int k = 1; k <= 400; k++) {
+				insert(file, model, k, k);
+				if (k >= 50 && k < 350)
+					insert(file, model, 100, 100);
+			}
+			boolean ok = check(file, model, 1, 400);
+			file.destroyFile();
+			return ok;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+	}
+
+	private boolean randomDuplicates(int format) {
+		System.out.println("  - 3000 random entries of 100 keys and "
+				+ RID_SLOTS + " rids, "
+				+ (format == LeafFormat.PLAIN ? "plain" : "compressed"));
+		try {
+			BTreeFile file = create(format);
+			Map<String, Integer> model = new HashMap<String, Integer>();
+			Random random = new Random(4331);
+			for (int i = 0; i < 3000; i++)
+				insert(file, model, 1 + random.nextInt(100), random
+						.nextInt(RID_SLOTS));
+			boolean ok = check(file, model, 1, 100) && check(file, model, 30, 60);
+			file.destroyFile();
+			return ok;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+	}
+
+	private boolean splitsBehindScan(int format) {
+		System.out.println("  - 1..400 twice each, 300 more 199s under a scan"
+				+ " at 200, " + (format == LeafFormat.PLAIN ? "plain" : "compressed"));
+		try {
+			BTreeFile file = create(format);
+			Map<String, Integer> model = new HashMap<String, Integer>();
+			for (int round = 0; round < 2; round++)
+				for (int k = 1; k <= 400; k++)
+					insert(file, model, k, k);
+
+			Map<String, Integer> seen = new HashMap<String, Integer>();
+			BTFileScan scan = file.new_scan(null, null);
+			KeyDataEntry entry;
+			while ((entry = scan.get_next()) != null) {
+				count(seen, entry);
+				if (((IntegerKey) entry.key).getKey().intValue() == 200)
+					break;
+			}
+			// these go just below the scan and split the leaf it is on again
+			// and again, moving entries it returned to the leaves after it
+			for (int i = 0; i < 300; i++)
+				file.insert(new IntegerKey(199), new RID(new PageId(199), 1000 + i));
+			while ((entry = scan.get_next()) != null)
+				count(seen, entry);
+			scan.DestroyBTreeFileScan();
+
+			boolean ok = same(model, seen, "scan under splits");
+			file.destroyFile();
+			return ok;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+	}
+
+	private BTreeFile create(int format) throws Exception {
+		return new BTreeFile("SCAN" + fileNo++, AttrType.attrInteger, 4,
+				DeleteFashion.NAIVE_DELETE, format);
+	}
+
+	private static void insert(BTreeFile file, Map<String, Integer> model,
+			int key, int slot) throws Exception {
+		RID rid = new RID(new PageId(key), slot);
+		file.insert(new IntegerKey(key), rid);
+		add(model, key + " " + key + " " + slot);
+	}
+
+	/*
+	 * Whether new_scan, new_scan(int, int), get_next_batch and parallelScan
+	 * over [lo, hi] each return the entries of the model in it, every one as
+	 * many times as it was inserted.
+	 */
+	private static boolean check(BTreeFile file, Map<String, Integer> model,
+			int lo, int hi) throws Exception {
+		Map<String, Integer> expected = new HashMap<String, Integer>();
+		for (Map.Entry<String, Integer> e : model.entrySet()) {
+			int key = Integer.parseInt(e.getKey().split(" ")[0]);
+			if (key >= lo && key <= hi)
+				expected.put(e.getKey(), e.getValue());
+		}
+
+		Map<String, Integer> seen = new HashMap<String, Integer>();
+		BTFileScan scan = file.new_scan(new IntegerKey(lo), new IntegerKey(hi));
+		KeyDataEntry entry;
+		while ((entry = scan.get_next()) != null)
+			count(seen, entry);
+		boolean ok = same(expected, seen, "new_scan");
+
+		seen = new HashMap<String, Integer>();
+		BTIntScan intScan = file.new_scan(lo, hi);
+		RID rid = new RID();
+		while (intScan.get_next()) {
+			intScan.get_rid(rid);
+			add(seen, intScan.get_key() + " " + rid.pageNo.pid + " " + rid.slotNo);
+		}
+		ok &= same(expected, seen, "new_scan(int, int)");
+
+		seen = new HashMap<String, Integer>();
+		intScan = file.new_scan(lo, hi);
+		int[] keys = new int[37];
+		int[] pages = new int[37];
+		int[] slots = new int[37];
+		int n;
+		while ((n = intScan.get_next_batch(keys, pages, slots)) > 0)
+			for (int i = 0; i < n; i++)
+				add(seen, keys[i] + " " + pages[i] + " " + slots[i]);
+		ok &= same(expected, seen, "get_next_batch");
+
+		final Map<String, Integer> parallel = new HashMap<String, Integer>();
+		file.parallelScan(new IntegerKey(lo), new IntegerKey(hi), 4,
+				new java.util.function.Consumer<KeyDataEntry>() {
+					public void accept(KeyDataEntry entry) {
+						synchronized (parallel) {
+							count(parallel, entry);
+						}
+					}
+				});
+		ok &= same(expected, parallel, "parallelScan");
+		return ok;
+	}
+
+	private static void count(Map<String, Integer> seen, KeyDataEntry entry) {
+		RID rid = ((LeafData) entry.data).getData();
+		add(seen, ((IntegerKey) entry.key).getKey() + " " + rid.pageNo.pid + " "
+				+ rid.slotNo);
+	}
+
+	private static void add(Map<String, Integer> counts, String entry) {
+		Integer n = counts.get(entry);
+		counts.put(entry, n == null ? 1 : n + 1);
+	}
+
+	private static boolean same(Map<String, Integer> expected,
+			Map<String, Integer> seen, String what) {
+		if (expected.equals(seen))
+			return OK;
+		Set<String> entries = new TreeSet<String>(expected.keySet());
+		entries.addAll(seen.keySet());
+		for (String entry : entries)
+			if (!Objects.equals(expected.get(entry), seen.get(entry))) {
+				System.out.println("    " + what + ": <" + entry + "> expected "
+						+ expected.get(entry) + " times, got " + seen.get(entry));
+				break;
+			}
+		return FAIL;
+	}
+}
+
+public class BTScanTest {
+
+	public static void main(String[] argvs) {
+		boolean pass = new BTScanDriver().runTests();
+		if (!pass)
+			Runtime.getRuntime().exit(1);
+	}
+}
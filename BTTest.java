@@ -179,7 +179,8 @@ class BTDriver implements GlobalConst {
 						System.out.println("1. Insert Single Value");
 						System.out.println("2. Insert Multiple Values");
 						System.out.println("3. Insert Values from a File");
-						System.out.println("Make your choice(4 to exit) :");
+						System.out.println("4. Insert Values from a File as One Batch");
+						System.out.println("Make your choice(5 to exit) :");
 						num = GetStuff.getChoice();
 						if (num < 0)
 							break;
@@ -224,6 +225,19 @@ class BTDriver implements GlobalConst {
 								rid = new RID(pageno, key);
 								file.insert(new IntegerKey(key), rid);
 							}
+							break;
+						case 4:
+							Scanner batchScanner = new Scanner(new File("test-insert-file.txt"));
+							List<KeyDataEntry> batch = new ArrayList<KeyDataEntry>();
+							while (batchScanner.hasNextInt()) {
+								key = batchScanner.nextInt();
+								if (key <= 0)
+									break;
+								rid = new RID(new PageId(key), key);
+								batch.add(new KeyDataEntry(new IntegerKey(key), rid));
+							}
+							file.insertBatch(batch.toArray(new KeyDataEntry[batch.size()]));
+							break;
 
 						default:
 							break;
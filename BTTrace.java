@@ -0,0 +1,215 @@
+package btree;
+
+import java.io.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The trace BTreeFile.traceFilename turns on: a file of fixed-size binary
+ * records, RECORD_INTS big-endian ints each, the event and a page id
+ * followed by three arguments.
+ *
+ * VISIT page: a descent went through page.
+ * INDEX_CHILDREN page, count: the children of an index page follow as
+ * count CHILD records, page, child, the left-most child first.
+ * LEAF_CHILDREN page, count: the entries of a leaf follow as count ENTRY
+ * records, page, key, rid page, rid slot; the key is carried for an
+ * integer index only and is 0 in a string index.
+ * DROPPED 0, count: count records were lost because the writer fell
+ * behind.
+ * Records of one event come in order, but records of other threads may
+ * sit between them; their page tells them apart.
+ *
+ * Tracing costs an operation no lock, no allocation and no I/O. A thread
+ * claims the next slot of a fixed ring with one compare-and-set, fills it
+ * in and publishes it by setting the slot's sequence number. One writer
+ * thread takes the records off the ring in order and writes them through a
+ * buffered stream, which it flushes whenever the ring runs empty. A record
+ * that finds the ring full is dropped and counted instead of waiting for
+ * the writer, so the trace can stay on under load.
+ */
+class BTTrace {
+
+	static final int VISIT = 1;
+	static final int INDEX_CHILDREN = 2;
+	static final int CHILD = 3;
+	static final int LEAF_CHILDREN = 4;
+	static final int ENTRY = 5;
+	static final int DROPPED = 6;
+
+	static final int RECORD_INTS = 5;
+
+	private static final int SLOTS = 1 << 14; // a power of two
+	private static final long IDLE_NANOS = 1000000; // writer's nap when empty
+
+	private static volatile BTTrace current; // null while not tracing
+
+	static {
+		// a trace that is never stopped still gets its last records written
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			public void run() {
+				try {
+					stop();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}, "btree-trace-stop"));
+	}
+
+	private final int[] records = new int[SLOTS * RECORD_INTS];
+	// sequence number + 1 of the record published in each slot
+	private final AtomicLongArray published = new AtomicLongArray(SLOTS);
+	private final AtomicLong claimed = new AtomicLong(); // next to claim
+	private volatile long drained; // next for the writer to write
+	private final AtomicLong dropped = new AtomicLong();
+	private volatile boolean closing;
+
+	private final DataOutputStream out;
+	private final Thread writer;
+	private IOException failure; // of the writer, reported by stop
+
+	private BTTrace(String filename) throws IOException {
+		out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(filename), 1 << 16));
+		writer = new Thread(new Runnable() {
+			public void run() {
+				write();
+			}
+		}, "btree-trace");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Trace to a new file filename, ending the trace written so far.
+	 */
+	static synchronized void start(String filename) throws IOException {
+		stop();
+		current = new BTTrace(filename);
+	}
+
+	/**
+	 * End the trace: the records published so far are written and the file
+	 * is closed.
+	 */
+	static synchronized void stop() throws IOException {
+		BTTrace trace = current;
+		if (trace == null)
+			return;
+		current = null;
+		trace.closing = true;
+		LockSupport.unpark(trace.writer);
+		boolean interrupted = false;
+		while (trace.writer.isAlive()) {
+			try {
+				trace.writer.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		if (trace.failure != null)
+			throw trace.failure;
+	}
+
+	/**
+	 * Whether a trace is being written.
+	 */
+	static boolean on() {
+		return current != null;
+	}
+
+	static void visit(int page) {
+		record(VISIT, page, 0, 0, 0);
+	}
+
+	/**
+	 * Trace one record, if a trace is being written.
+	 */
+	static void record(int event, int page, int a, int b, int c) {
+		BTTrace trace = current;
+		if (trace != null)
+			trace.put(event, page, a, b, c);
+	}
+
+	private void put(int event, int page, int a, int b, int c) {
+		long seq;
+		do {
+			seq = claimed.get();
+			if (seq - drained >= SLOTS) {
+				dropped.incrementAndGet();
+				return;
+			}
+		} while (!claimed.compareAndSet(seq, seq + 1));
+
+		int slot = (int) seq & (SLOTS - 1);
+		int i = slot * RECORD_INTS;
+		records[i] = event;
+		records[i + 1] = page;
+		records[i + 2] = a;
+		records[i + 3] = b;
+		records[i + 4] = c;
+		published.set(slot, seq + 1);
+	}
+
+	/*
+	 * The writer thread: drain the ring until the trace is stopped and every
+	 * record claimed has been written.
+	 */
+	private void write() {
+		try {
+			while (true) {
+				if (drain() > 0)
+					continue;
+				if (closing && drained == claimed.get())
+					break;
+				out.flush();
+				if (!closing)
+					LockSupport.parkNanos(IDLE_NANOS);
+			}
+		} catch (IOException e) {
+			failure = e;
+		}
+		try {
+			out.close();
+		} catch (IOException e) {
+			if (failure == null)
+				failure = e;
+		}
+	}
+
+	/*
+	 * Write the records published in order from `drained' on. Returns how
+	 * many were written.
+	 */
+	private int drain() throws IOException {
+		long seq = drained;
+		int n = 0;
+		while (true) {
+			int slot = (int) seq & (SLOTS - 1);
+			if (published.get(slot) != seq + 1)
+				break;
+			int i = slot * RECORD_INTS;
+			for (int j = 0; j < RECORD_INTS; j++)
+				out.writeInt(records[i + j]);
+			seq++;
+			if ((++n & 255) == 0)
+				drained = seq; // make room as we go
+		}
+		drained = seq;
+
+		long lost = dropped.get();
+		if (lost > 0) {
+			dropped.addAndGet(-lost);
+			out.writeInt(DROPPED);
+			out.writeInt(0);
+			out.writeInt((int) Math.min(lost, Integer.MAX_VALUE));
+			out.writeInt(0);
+			out.writeInt(0);
+		}
+		return n;
+	}
+}
@@ -24,20 +24,21 @@
  /**
   * btfile.java This is the main definition of class BTreeFile, which derives
   * from abstract base class IndexFile. It provides an insert/delete interface.
+  *
+  * insert, Delete, new_scan and the scans it returns can be used by several
+  * threads at once; see BTLatches for how pages are latched.
   */
  public class BTreeFile extends IndexFile implements GlobalConst {
  
-	 private final static int MAGIC0 = 1989;
- 
-	 private final static String lineSep = System.getProperty("line.separator");
- 
-	 private static FileOutputStream fos;
-	 private static DataOutputStream trace;
+	 // 1989 before pages had a high-key trailer; such files are not opened
+	 private final static int MAGIC0 = 1990;
  
 	 /**
 	  * It causes a structured trace to be written to a file. This output is used
 	  * to drive a visualization tool that shows the inner workings of the b-tree
-	  * during its operations.
+	  * during its operations. The records are binary and of one size (see
+	  * BTTrace); a background thread writes them, so an operation only puts
+	  * them in memory. A trace written before is ended.
 	  *
 	  * @param filename
 	  *            input parameter. The trace file name
@@ -45,30 +46,31 @@
 	  *                error from the lower layer
 	  */
 	 public static void traceFilename(String filename) throws IOException {
- 
-		 fos = new FileOutputStream(filename);
-		 trace = new DataOutputStream(fos);
+		 BTTrace.start(filename);
 	 }
  
 	 /**
-	  * Stop tracing. And close trace file.
+	  * Stop tracing. And close trace file, once the records traced so far are
+	  * written.
 	  *
 	  * @exception IOException
 	  *                error from the lower layer
 	  */
 	 public static void destroyTrace() throws IOException {
-		 if (trace != null)
-			 trace.close();
-		 if (fos != null)
-			 fos.close();
-		 fos = null;
-		 trace = null;
+		 BTTrace.stop();
 	 }
  
 	 private BTreeHeaderPage headerPage;
 	 private PageId headerPageId;
 	 private String dbname;
  
+	 // decoded copies of the top index levels (see BTIndexCache)
+	 private final BTIndexCache indexCache = new BTIndexCache(CACHED_LEVELS);
+	 private static final int CACHED_LEVELS = 2;
+ 
+	 // counts and latencies, shown through JMX while the index is open
+	 private final BTMetrics metrics = new BTMetrics(this);
+ 
 	 /**
 	  * Access method to data member.
 	  * 
@@ -91,7 +93,10 @@
 	 private Page pinPage(PageId pageno) throws PinPageException {
 		 try {
 			 Page page = new Page();
-			 SystemDefs.JavabaseBM.pinPage(pageno, page, false/* Rdisk */);
+			 synchronized (SystemDefs.JavabaseBM) {
+				 SystemDefs.JavabaseBM.pinPage(pageno, page, false/* Rdisk */);
+			 }
+			 metrics.pinned();
 			 return page;
 		 } catch (Exception e) {
 			 e.printStackTrace();
@@ -111,7 +116,9 @@
  
 	 private void unpinPage(PageId pageno) throws UnpinPageException {
 		 try {
-			 SystemDefs.JavabaseBM.unpinPage(pageno, false /* = not DIRTY */);
+			 synchronized (SystemDefs.JavabaseBM) {
+				 SystemDefs.JavabaseBM.unpinPage(pageno, false /* = not DIRTY */);
+			 }
 		 } catch (Exception e) {
 			 e.printStackTrace();
 			 throw new UnpinPageException(e, "");
@@ -120,7 +127,9 @@
  
 	 private void freePage(PageId pageno) throws FreePageException {
 		 try {
-			 SystemDefs.JavabaseBM.freePage(pageno);
+			 synchronized (SystemDefs.JavabaseBM) {
+				 SystemDefs.JavabaseBM.freePage(pageno);
+			 }
 		 } catch (Exception e) {
 			 e.printStackTrace();
 			 throw new FreePageException(e, "");
@@ -141,13 +150,42 @@
 	 private void unpinPage(PageId pageno, boolean dirty)
 			 throws UnpinPageException {
 		 try {
-			 SystemDefs.JavabaseBM.unpinPage(pageno, dirty);
+			 synchronized (SystemDefs.JavabaseBM) {
+				 SystemDefs.JavabaseBM.unpinPage(pageno, dirty);
+			 }
 		 } catch (Exception e) {
 			 e.printStackTrace();
 			 throw new UnpinPageException(e, "");
 		 }
 	 }
  
+	 /*
+	  * New leaf and index pages, pinned, with a trailer for their high key (see
+	  * BTPageBytes). The buffer manager is not thread safe, so every call into
+	  * it goes through these helpers and the ones above, which take turns on
+	  * SystemDefs.JavabaseBM.
+	  */
+	 private BTLeafPage allocLeafPage() throws ConstructPageException,
+			 IOException {
+		 BTLeafPage page;
+		 synchronized (SystemDefs.JavabaseBM) {
+			 page = new BTLeafPage(headerPage.get_keyType());
+		 }
+		 BTPageBytes.initTrailer(page.getpage(), headerPage.get_maxKeySize(), false);
+		 return page;
+	 }
+ 
+	 private BTIndexPage allocIndexPage() throws ConstructPageException,
+			 IOException {
+		 BTIndexPage page;
+		 synchronized (SystemDefs.JavabaseBM) {
+			 page = new BTIndexPage(headerPage.get_keyType());
+		 }
+		 BTPageBytes.initTrailer(page.getpage(), headerPage.get_maxKeySize(),
+				 counted());
+		 return page;
+	 }
+ 
 	 /**
 	  * BTreeFile class an index file with given filename should already exist;
 	  * this opens it.
@@ -159,7 +197,8 @@
 	  * @exception PinPageException
 	  *                failed when pin a page
 	  * @exception ConstructPageException
-	  *                BT page constructor failed
+	  *                BT page constructor failed, or the file is not an index
+	  *                of this format
 	  */
 	 public BTreeFile(String filename) throws GetFileEntryException,
 			 PinPageException, ConstructPageException {
@@ -167,7 +206,9 @@
 		 headerPageId = get_file_entry(filename);
  
 		 headerPage = new BTreeHeaderPage(headerPageId);
+		 checkMagic();
 		 dbname = new String(filename);
+		 metrics.register(dbname);
 		 /*
 		  * 
 		  * - headerPageId is the PageId of this BTreeFile's header page; -
@@ -196,14 +237,99 @@
 	  *                error from lower layer
 	  * @exception AddFileEntryException
 	  *                can not add file into DB
+	  * @exception KeyTooLongException
+	  *                keysize too large for two entries to fit a page
 	  */
 	 public BTreeFile(String filename, int keytype, int keysize,
 			 int delete_fashion) throws GetFileEntryException,
-			 ConstructPageException, IOException, AddFileEntryException {
+			 ConstructPageException, IOException, AddFileEntryException,
+			 KeyTooLongException {
+		 this(filename, keytype, keysize, delete_fashion, LeafFormat.PLAIN);
+	 }
+ 
+	 /**
+	  * if index file exists, open it; else create it with the given leaf
+	  * format.
+	  *
+	  * @param filename
+	  *            file name. Input parameter.
+	  * @param keytype
+	  *            the type of key. Input parameter.
+	  * @param keysize
+	  *            the maximum size of a key. Input parameter.
+	  * @param delete_fashion
+	  *            full delete or naive delete. Input parameter. It is either
+	  *            DeleteFashion.NAIVE_DELETE or DeleteFashion.FULL_DELETE.
+	  * @param leaf_format
+	  *            how leaf pages are laid out. Input parameter. It is either
+	  *            LeafFormat.PLAIN or LeafFormat.COMPRESSED; an existing file
+	  *            keeps the format it was created with.
+	  * @exception GetFileEntryException
+	  *                can not get file
+	  * @exception ConstructPageException
+	  *                page constructor failed
+	  * @exception IOException
+	  *                error from lower layer
+	  * @exception AddFileEntryException
+	  *                can not add file into DB
+	  * @exception KeyTooLongException
+	  *                keysize too large for two entries to fit a page
+	  */
+	 public BTreeFile(String filename, int keytype, int keysize,
+			 int delete_fashion, int leaf_format) throws GetFileEntryException,
+			 ConstructPageException, IOException, AddFileEntryException,
+			 KeyTooLongException {
+		 this(filename, keytype, keysize, delete_fashion, leaf_format, false);
+	 }
+ 
+	 /**
+	  * if index file exists, open it; else create it with the given leaf
+	  * format, keeping subtree counts in its index entries if `counted'. Such
+	  * an index answers count, rank, select and new_offset_scan without
+	  * walking the entries they skip, at the price of writers that run one at
+	  * a time.
+	  *
+	  * @param filename
+	  *            file name. Input parameter.
+	  * @param keytype
+	  *            the type of key. Input parameter.
+	  * @param keysize
+	  *            the maximum size of a key. Input parameter.
+	  * @param delete_fashion
+	  *            full delete or naive delete. Input parameter. It is either
+	  *            DeleteFashion.NAIVE_DELETE or DeleteFashion.FULL_DELETE.
+	  * @param leaf_format
+	  *            how leaf pages are laid out. Input parameter. It is either
+	  *            LeafFormat.PLAIN or LeafFormat.COMPRESSED.
+	  * @param counted
+	  *            whether index entries keep the number of leaf entries under
+	  *            their child. Input parameter. An existing file keeps what it
+	  *            was created with.
+	  * @exception GetFileEntryException
+	  *                can not get file
+	  * @exception ConstructPageException
+	  *                page constructor failed
+	  * @exception IOException
+	  *                error from lower layer
+	  * @exception AddFileEntryException
+	  *                can not add file into DB
+	  * @exception KeyTooLongException
+	  *                keysize too large for two entries to fit a page
+	  */
+	 public BTreeFile(String filename, int keytype, int keysize,
+			 int delete_fashion, int leaf_format, boolean counted)
+			 throws GetFileEntryException, ConstructPageException, IOException,
+			 AddFileEntryException, KeyTooLongException {
  
 		 headerPageId = get_file_entry(filename);
 		 if (headerPageId == null) // file not exist
 		 {
+			 // two entries of the max keysize have to fit a page beside its
+			 // trailer, or a split could leave a half without room
+			 if (2 * (keysize + 8 + HFPage.SIZE_OF_SLOT)
+					 + BTPageBytes.trailerLength(keysize) + (counted ? 4 : 0) > MAX_SPACE
+					 - HFPage.DPFIXED)
+				 throw new KeyTooLongException(null, "keysize too large for a page");
 			 headerPage = new BTreeHeaderPage();
 			 headerPageId = headerPage.getPageId();
 			 add_file_entry(filename, headerPageId);
@@ -212,18 +338,99 @@
 			 headerPage.set_keyType((short) keytype);
 			 headerPage.set_maxKeySize(keysize);
 			 headerPage.set_deleteFashion(delete_fashion);
+			 set_leafFormat(leaf_format);
+			 set_counted(counted);
 			 headerPage.setType(NodeType.BTHEAD);
 		 } else {
 			 headerPage = new BTreeHeaderPage(headerPageId);
+			 checkMagic();
 		 }
  
 		 dbname = new String(filename);
+		 metrics.register(dbname);
+ 
+	 }
+ 
+	 /*
+	  * The header page just pinned has to be that of an index of this format;
+	  * if not, it is unpinned again.
+	  */
+	 private void checkMagic() throws ConstructPageException {
+		 int magic;
+		 try {
+			 magic = headerPage.get_magic0();
+		 } catch (IOException e) {
+			 throw new ConstructPageException(e, "can not read the header page");
+		 }
+		 if (magic == MAGIC0)
+			 return;
+		 try {
+			 close();
+		 } catch (Exception e) {
+			 // the file is refused all the same
+		 }
+		 throw new ConstructPageException(null,
+				 "not an index file of this format, rebuild it");
+	 }
+ 
+	 /**
+	  * Keep decoded copies of the index pages on the top `levels' levels of the
+	  * tree, the root being level 1; 0 keeps none. The search for the start of
+	  * a run passes a page it has a valid copy of without pinning it, so it
+	  * only goes to the buffer manager below those levels. Two levels are kept
+	  * unless this is called.
+	  *
+	  * @param levels
+	  *            how many levels to keep. Input parameter.
+	  */
+	 public void cacheUpperLevels(int levels) {
+		 indexCache.setLevels(levels);
+	 }
+ 
+	 /**
+	  * The counts and latency histograms of this index, which JMX also shows
+	  * while it is open (see BTMetricsMXBean).
+	  *
+	  * @return the metrics of this index
+	  */
+	 public BTMetricsMXBean getMetrics() {
+		 return metrics;
+	 }
  
+	 /*
+	  * Levels of the tree down its left-most children, the leaves included; 0
+	  * for an empty tree. Pages are latched one at a time as by a reader.
+	  */
+	 int height() throws IOException, PinPageException, UnpinPageException {
+		 BTLatches latches = new BTLatches();
+		 try {
+			 while (true) {
+				 BTSortedPage sortPage = latchRoot(latches);
+				 if (sortPage == null)
+					 return 0;
+				 int height = 1;
+				 while (sortPage != null && sortPage.getType() == NodeType.INDEX) {
+					 sortPage = follow(sortPage, sortPage.getPrevPage().pid, latches,
+							 false);
+					 height++;
+				 }
+				 if (sortPage != null) {
+					 unpinPage(sortPage.getCurPage());
+					 return height;
+				 }
+			 }
+		 } finally {
+			 latches.releaseAll();
+		 }
 	 }
  
 	 /**
-	  * Close the B+ tree file. Unpin header page.
+	  * Close the B+ tree file. Free the pages full delete took out of the
+	  * tree and unpin header page. No other thread may be using the index.
 	  *
+	  * @exception FreePageException
+	  *                error when free a page; the index stays open and the
+	  *                pages not freed yet are kept for the next try
 	  * @exception PageUnpinnedException
 	  *                error from the lower layer
 	  * @exception InvalidFrameNumberException
@@ -233,17 +440,22 @@
 	  * @exception ReplacerException
 	  *                error from the lower layer
 	  */
-	 public void close() throws PageUnpinnedException,
+	 public void close() throws FreePageException, PageUnpinnedException,
 			 InvalidFrameNumberException, HashEntryNotFoundException,
 			 ReplacerException {
 		 if (headerPage != null) {
-			 SystemDefs.JavabaseBM.unpinPage(headerPageId, true);
+			 freeRetired(true);
+			 synchronized (SystemDefs.JavabaseBM) {
+				 SystemDefs.JavabaseBM.unpinPage(headerPageId, true);
+			 }
 			 headerPage = null;
+			 indexCache.clear();
+			 metrics.unregister();
 		 }
 	 }
  
 	 /**
-	  * Destroy entire B+ tree file.
+	  * Destroy entire B+ tree file. No other thread may be using the index.
 	  *
 	  * @exception IOException
 	  *                error from the lower layer
@@ -264,13 +476,16 @@
 			 UnpinPageException, FreePageException, DeleteFileEntryException,
 			 ConstructPageException, PinPageException {
 		 if (headerPage != null) {
-			 PageId pgId = headerPage.get_rootId();
+			 freeRetired(true);
+			 PageId pgId = rootId();
 			 if (pgId.pid != INVALID_PAGE)
 				 _destroyFile(pgId);
 			 unpinPage(headerPageId);
 			 freePage(headerPageId);
 			 delete_file_entry(dbname);
 			 headerPage = null;
+			 indexCache.clear();
+			 metrics.unregister();
 		 }
 	 }
  
@@ -293,12 +508,93 @@
 				 childId = ((IndexData) (entry.data)).getData();
 				 _destroyFile(childId);
 			 }
-		 } else { // BTLeafPage
- 
-			 unpinPage(pageno);
-			 freePage(pageno);
+			 _destroyFile(indexPage.getPrevPage());
 		 }
  
+		 unpinPage(pageno);
+		 freePage(pageno);
+ 
+	 }
+ 
+	 /*
+	  * The leaf format is kept in the offset half of the header page slot
+	  * that holds the key type. BTreeHeaderPage.set_keyType writes it as 0,
+	  * so files from before the format existed read as LeafFormat.PLAIN.
+	  */
+	 private void set_leafFormat(int format) throws IOException {
+		 BTPageBytes.setSlot(headerPage.getpage(), 3, headerPage.get_keyType(),
+				 format);
+	 }
+ 
+	 private boolean compressedLeaves() {
+		 return BTPageBytes.slotOffset(headerPage.getpage(), 3) == LeafFormat.COMPRESSED;
+	 }
+ 
+	 /*
+	  * Whether the index keeps subtree counts is kept the same way, in the
+	  * offset half of the slot that holds the delete fashion.
+	  */
+	 private void set_counted(boolean counted) throws IOException {
+		 BTPageBytes.setSlot(headerPage.getpage(), 2, headerPage
+				 .get_deleteFashion(), counted ? 1 : 0);
+	 }
+ 
+	 private boolean counted() {
+		 return BTPageBytes.slotOffset(headerPage.getpage(), 2) == 1;
+	 }
+ 
+	 /*
+	  * Bytes of an index entry after its key: the child, and before it the
+	  * count of the child if the index keeps counts.
+	  */
+	 private int indexDataLength() {
+		 return counted() ? 8 : 4;
+	 }
+ 
+	 /*
+	  * Whether an insert below the latched page `page' leaves its ancestors
+	  * alone: it has room for one more entry. A compressed leaf is never taken
+	  * for safe, since how much an entry adds to it depends on its neighbours,
+	  * and no page of an index that keeps counts is, since every count on the
+	  * way down changes.
+	  */
+	 private boolean insertSafe(BTSortedPage page) throws IOException {
+		 if (counted())
+			 return false;
+		 if (page.getType() == NodeType.INDEX)
+			 return page.available_space() >= headerPage.get_maxKeySize()
+					 + indexDataLength();
+		 return !compressedLeaves()
+				 && page.available_space() >= headerPage.get_maxKeySize() + 8;
+	 }
+ 
+	 /*
+	  * Whether a full delete below the latched page `page' leaves its ancestors
+	  * alone: it stays at least half full after losing one entry or, for the
+	  * root, is not emptied. As for insertSafe, never in an index that keeps
+	  * counts.
+	  */
+	 private boolean deleteSafe(BTSortedPage page, boolean root)
+			 throws IOException {
+		 if (counted())
+			 return false;
+		 if (root)
+			 return (page.getType() == NodeType.LEAF ? leafCount(page) : page
+					 .getSlotCnt()) > 1;
+		 return BTPageBytes.usedSpace(page.getpage())
+				 - (headerPage.get_maxKeySize() + 16) >= BTPageBytes.capacity(page
+				 .getpage()) / 2;
+	 }
+ 
+	 /*
+	  * The root id from the header page. HFPage returns the same PageId
+	  * object from every call to a link getter and overwrites it each time,
+	  * and headerPage is shared, so the id get_rootId returns could change
+	  * under a thread that holds on to it.
+	  */
+	 private PageId rootId() {
+		 return new PageId(BTPageBytes.getInt(headerPage.getpage(),
+				 HFPage.NEXT_PAGE));
 	 }
  
 	 private void updateHeader(PageId newRoot) throws IOException,
@@ -309,7 +605,7 @@
  
 		 header = new BTreeHeaderPage(pinPage(headerPageId));
  
-		 old_data = headerPage.get_rootId();
+		 old_data = rootId();
 		 header.set_rootId(newRoot);
  
 		 // clock in dirty bit to bm so our dtor needn't have to worry about it
@@ -366,255 +662,927 @@
 			 IteratorException, LeafDeleteException, InsertException,
 			 IOException {
  
-		 if (headerPage.get_rootId().pid == INVALID_PAGE) {
-			 // Tree is empty, create a new root leaf page
-			 BTLeafPage newRootPage = new BTLeafPage(headerPage.get_keyType());
-			 PageId newRootPageId = newRootPage.getCurPage();
-			 newRootPage.setNextPage(new PageId(INVALID_PAGE));
-			 newRootPage.setPrevPage(new PageId(INVALID_PAGE));
-			 newRootPage.insertRecord(key, rid);
-			 unpinPage(newRootPageId, true); // Mark as dirty
-			 updateHeader(newRootPageId); // Update the header with the new root
-		 } else {
-			 // Tree is not empty, call _insert
-			 KeyDataEntry newRootEntry = _insert(key, rid, headerPage.get_rootId());
-			 if (newRootEntry != null) {
-				 // A split occurred, create a new root index page
-				 BTIndexPage newRootIndexPage = new BTIndexPage(headerPage.get_keyType());
-				 PageId newRootIndexPageId = newRootIndexPage.getCurPage();
+		 if (BTPageBytes.keyLength(key) > headerPage.get_maxKeySize())
+			 throw new KeyTooLongException(null, "key longer than the max keysize");
  
-				 // Insert <splitKey, newChildPageId> into new root
-				 newRootIndexPage.insertKey(newRootEntry.key, ((IndexData) newRootEntry.data).getData());
-				 // The old root becomes left pointer
-				 newRootIndexPage.setPrevPage(headerPage.get_rootId());
+		 long started = metrics.begin();
+		 BTLatches latches = new BTLatches();
+		 try {
+			 insertRun(new KeyDataEntry[] { new KeyDataEntry(key, rid) }, 0,
+					 latches);
+		 } finally {
+			 latches.releaseAll();
+			 metrics.end(BTMetrics.INSERT, started);
+		 }
+	 }
  
-				 unpinPage(newRootIndexPageId, true); // Mark as dirty
-				 updateHeader(newRootIndexPageId); // Update the header with the new root
+	 /**
+	  * insert a batch of records. The batch is sorted by key first, and then
+	  * the records that go to the same leaf are put on it in one visit: a run of
+	  * keys shares the descent and the pin of the leaf until one of them is
+	  * past the leaf's high key or does not fit on it any more. That one
+	  * starts the next run, and if it does not fit on its leaf either, the
+	  * leaf splits as it would for insert. Unlike bulkLoad, this is for a tree
+	  * that has entries already.
+	  *
+	  * @param entries
+	  *            the records, <key, rid> leaf entries in any order. Input
+	  *            parameter.
+	  * @exception KeyTooLongException
+	  *                key size exceeds the max keysize.
+	  * @exception KeyNotMatchException
+	  *                a key is not of the key type of the index
+	  * @exception IOException
+	  *                error from the lower layer
+	  * @exception LeafInsertRecException
+	  *                insert error in leaf page
+	  * @exception IndexInsertRecException
+	  *                insert error in index page
+	  * @exception ConstructPageException
+	  *                error in BT page constructor
+	  * @exception UnpinPageException
+	  *                error when unpin a page
+	  * @exception PinPageException
+	  *                error when pin a page
+	  * @exception NodeNotMatchException
+	  *                entry data is not leaf data, or node not match index page
+	  *                nor leaf page
+	  */
+	 public void insertBatch(KeyDataEntry[] entries) throws KeyTooLongException,
+			 KeyNotMatchException, LeafInsertRecException,
+			 IndexInsertRecException, ConstructPageException,
+			 UnpinPageException, PinPageException, NodeNotMatchException,
+			 IOException {
+		 int keyType = headerPage.get_keyType();
+		 for (KeyDataEntry entry : entries) {
+			 if (keyType == AttrType.attrInteger ? !(entry.key instanceof IntegerKey)
+					 : !(entry.key instanceof StringKey))
+				 throw new KeyNotMatchException(null, "key types do not match");
+			 if (BTPageBytes.keyLength(entry.key) > headerPage.get_maxKeySize())
+				 throw new KeyTooLongException(null, "key longer than the max keysize");
+			 if (!(entry.data instanceof LeafData))
+				 throw new NodeNotMatchException(null, "insertBatch needs leaf entries");
+		 }
+		 // stable, so equal keys go in in the order they came
+		 KeyDataEntry[] sorted = entries.clone();
+		 java.util.Arrays.sort(sorted, new java.util.Comparator<KeyDataEntry>() {
+			 public int compare(KeyDataEntry a, KeyDataEntry b) {
+				 try {
+					 return BT.keyCompare(a.key, b.key);
+				 } catch (KeyNotMatchException e) {
+					 throw new IllegalStateException(e); // checked above
+				 }
+			 }
+		 });
+ 
+		 for (int i = 0; i < sorted.length;) {
+			 BTLatches latches = new BTLatches();
+			 try {
+				 i = insertRun(sorted, i, latches);
+			 } finally {
+				 latches.releaseAll();
 			 }
 		 }
+		 metrics.add(BTMetrics.INSERT, sorted.length);
 	 }
  
-	 private KeyDataEntry _insert(KeyClass key, RID rid, PageId currentPageId)
-			 throws PinPageException, IOException, ConstructPageException,
-			 LeafDeleteException, /* repeated */ ConstructPageException,
-			 DeleteRecException, IndexSearchException, UnpinPageException,
-			 LeafInsertRecException, ConvertException, IteratorException,
-			 IndexInsertRecException, KeyNotMatchException,
-			 NodeNotMatchException, InsertException {
+	 /*
+	  * insert with latch crabbing. Pages are latched exclusively from the
+	  * header page down, and once a page is latched that the insert cannot
+	  * split (see insertSafe) the latches above it are let go: a split can then
+	  * only be posted into pages that are still latched. All latches are taken
+	  * into `latches' and released by the caller.
+	  *
+	  * entries[from] is inserted, and the entries after it, which are in key
+	  * order, as long as they go on the same leaf without splitting it (see
+	  * fillLeaf). Returns the position of the first entry not inserted.
+	  */
+	 private int insertRun(KeyDataEntry[] entries, int from, BTLatches latches)
+			 throws KeyNotMatchException, LeafInsertRecException,
+			 IndexInsertRecException, ConstructPageException,
+			 UnpinPageException, PinPageException, NodeNotMatchException,
+			 IOException {
+ 
+		 KeyClass key = entries[from].key;
+		 RID rid = ((LeafData) entries[from].data).getData();
+		 latches.exclusive(headerPageId.pid);
+		 if (rootId().pid == INVALID_PAGE) {
+			 insertFirst(key, rid);
+			 return from + 1;
+		 }
+ 
+		 // Walk down to the leaf, remembering the index pages on the way and
+		 // the slot right after the child taken in each. Each one is unpinned
+		 // as soon as its child is known and only pinned again if a split has
+		 // to be posted into it.
+		 int[] path = new int[8];
+		 int[] slots = new int[8];
+		 int depth = 0;
  
+		 PageId currentPageId = rootId();
+		 latches.exclusive(currentPageId.pid);
 		 Page page = pinPage(currentPageId);
 		 BTSortedPage currentPage = new BTSortedPage(page, headerPage.get_keyType());
-		 KeyDataEntry upEntry = null;
- 
-		 if (currentPage.getType() == NodeType.INDEX) {
-			 // Current page is an index page
-			 BTIndexPage currentIndexPage = new BTIndexPage(page, headerPage.get_keyType());
-			 PageId nextPageId = currentIndexPage.getPageNoByKey(key);
+		 if (insertSafe(currentPage))
+			 latches.keepLast(1);
+		 while (currentPage.getType() == NodeType.INDEX) {
+			 int slot = BTPageBytes.upperBound(currentPage.getpage(), key);
+			 PageId nextPageId = slot == 0 ? currentPage.getPrevPage()
+					 : new PageId(BTPageBytes.childAt(currentPage.getpage(), slot - 1));
+			 unpinPage(currentPageId);
  
-			 // Unpin before recursion
+			 if (depth == path.length) {
+				 path = java.util.Arrays.copyOf(path, 2 * depth);
+				 slots = java.util.Arrays.copyOf(slots, 2 * depth);
+			 }
+			 path[depth] = currentPageId.pid;
+			 slots[depth++] = slot;
+ 
+			 currentPageId = nextPageId;
+			 latches.exclusive(currentPageId.pid);
+			 page = pinPage(currentPageId);
+			 currentPage = new BTSortedPage(page, headerPage.get_keyType());
+			 if (insertSafe(currentPage))
+				 latches.keepLast(1);
+		 }
+		 if (currentPage.getType() != NodeType.LEAF) {
 			 unpinPage(currentPageId);
-			 upEntry = _insert(key, rid, nextPageId);
- 
-			 // Re-pin
-			 pinPage(currentPageId);
-			 currentIndexPage = new BTIndexPage(page, headerPage.get_keyType());
- 
-			 if (upEntry != null) {
-				 // A split occurred in the child page
-				 int entrySize = BT.getKeyDataLength(upEntry.key, NodeType.INDEX);
-				 if (currentIndexPage.available_space() >= entrySize) {
-					 // There is space in the current index page
-					 currentIndexPage.insertKey(upEntry.key, ((IndexData) upEntry.data).getData());
-					 unpinPage(currentPageId, true);
-					 upEntry = null; // No further split at this level
-				 } else {
-					 // *** ADDED/UPDATED ***: Index page split
-					 BTIndexPage newIndexPage = new BTIndexPage(headerPage.get_keyType());
-					 PageId newIndexPageId = newIndexPage.getCurPage();
- 
-					 // Gather everything
-					 java.util.ArrayList<KeyDataEntry> originalEntries = new java.util.ArrayList<>();
-					 RID rr = new RID();
-					 for (KeyDataEntry e = currentIndexPage.getFirst(rr); e != null; e = currentIndexPage.getNext(rr)) {
-						 originalEntries.add(e);
-					 }
-					 unpinPage(currentPageId, false);
- 
-					 // Now we combine original entries + upEntry, then we do the split
-					 originalEntries.add(upEntry);
- 
-					 // Sort them by key
-					 originalEntries.sort(new java.util.Comparator<KeyDataEntry>() {
-						 public int compare(KeyDataEntry o1, KeyDataEntry o2) {
-							 try{
-							 return BT.keyCompare(o1.key, o2.key);
-							 }
-							 catch (KeyNotMatchException e) {
-								 throw new RuntimeException(e);
-							 }
-						 }
-					 });
+			 throw new NodeNotMatchException(null, "page is neither index nor leaf");
+		 }
  
-					 // Clear the old page entirely
-					 pinPage(currentPageId);
-					 currentIndexPage = new BTIndexPage(page, headerPage.get_keyType());
-					 RID oldRid = new RID();
-					 KeyDataEntry oldEntry = currentIndexPage.getFirst(oldRid);
-					 while (oldEntry != null) {
-						 currentIndexPage.deleteSortedRecord(oldRid);
-						 oldEntry = currentIndexPage.getFirst(oldRid);
-					 }
+		 int next = compressedLeaves() ? fillCompressedLeaf(currentPage, entries,
+				 from) : fillLeaf(new BTLeafPage(page, headerPage.get_keyType()),
+				 entries, from);
+		 if (next > from) {
+			 unpinPage(currentPageId, true);
+			 if (counted())
+				 addCounts(path, slots, -1, depth, next - from);
+			 return next;
+		 }
  
-					 // 2) Redistribute half to currentIndexPage, half to newIndexPage
-					 int totalCount = originalEntries.size();
-					 int splitIndex = totalCount / 2; // roughly half
-					 // The "middle" key is typically promoted
-					 // In a B+ tree, we usually promote the "splitIndex" entry's key
-					 int i = 0;
-					 for (i = 0; i < splitIndex; i++) {
-						 currentIndexPage.insertKey(
-							 originalEntries.get(i).key,
-							 ((IndexData) originalEntries.get(i).data).getData()
-						 );
-					 }
-					 // The entry at splitIndex is the one to promote
-					 KeyDataEntry midEntry = originalEntries.get(splitIndex);
-					 upEntry = new KeyDataEntry(midEntry.key, ((IndexData) midEntry.data).getData());
- 
-					 // newIndexPage gets entries from splitIndex+1 onward
-					 for (i = splitIndex + 1; i < totalCount; i++) {
-						 newIndexPage.insertKey(
-							 originalEntries.get(i).key,
-							 ((IndexData) originalEntries.get(i).data).getData()
-						 );
-					 }
+		 // entries[from] does not fit: split
+		 KeyDataEntry upEntry = compressedLeaves() ? insertIntoCompressedLeaf(
+				 currentPage, key, rid, latches) : insertIntoLeaf(new BTLeafPage(
+				 page, headerPage.get_keyType()), key, rid, latches);
+		 if (counted())
+			 addCounts(path, slots, -1, depth, 1);
+		 postSplit(upEntry, path, slots, depth);
+		 return from + 1;
+	 }
  
-					 // 3) Set the newIndexPage's prevPage pointer:
-					 newIndexPage.setPrevPage(((IndexData) upEntry.data).getData()); // i.e. the child pointer
- 
-					 // "Remove" the middle entry from currentIndexPage or newIndexPage? 
-					 // Actually, in a B+ tree, the 'midEntry' stays out of the pages. It's promoted up.
-					 // So let's make sure the midEntry isn't physically in either page if we inserted it:
-					 RID delRid = new RID();
-					 KeyDataEntry e2 = currentIndexPage.getFirst(delRid);
-					 while (e2 != null) {
-						 if (BT.keyCompare(e2.key, midEntry.key) == 0
-							 && ((IndexData) e2.data).getData().pid == ((IndexData) midEntry.data).getData().pid) {
-								 currentIndexPage.deleteSortedRecord(delRid);
-								 break;
-						 }
-						 e2 = currentIndexPage.getNext(delRid);
-					 }
+	 /*
+	  * Put entries[from..] on the latched and pinned leaf, in key order, while
+	  * they fit on it and are not past its high key. entries[from] was routed
+	  * to the leaf, and the ones after it are not below it. Returns the
+	  * position of the first entry not put.
+	  */
+	 private int fillLeaf(BTLeafPage leaf, KeyDataEntry[] entries, int from)
+			 throws KeyNotMatchException, NodeNotMatchException,
+			 LeafInsertRecException, IOException {
+		 byte[] data = leaf.getpage();
+		 int i = from;
+		 for (; i < entries.length; i++) {
+			 KeyClass key = entries[i].key;
+			 if (i > from && BTPageBytes.pastHighKey(key, data))
+				 break;
+			 if (leaf.available_space() < BT.getKeyDataLength(key, NodeType.LEAF))
+				 break;
+			 leaf.insertRecord(key, ((LeafData) entries[i].data).getData());
+		 }
+		 return i;
+	 }
  
-					 // 4) Unpin pages
-					 unpinPage(currentPageId, true);
-					 unpinPage(newIndexPageId, true);
+	 /*
+	  * fillLeaf for a compressed leaf: the entries are decoded once, the run is
+	  * added while it fits and the page is written back once.
+	  */
+	 private int fillCompressedLeaf(BTSortedPage leaf, KeyDataEntry[] entries,
+			 int from) throws KeyNotMatchException, IOException {
+		 byte[] data = leaf.getpage();
+		 BTLeafBlock block = new BTLeafBlock(headerPage.get_keyType());
+		 block.read(data);
+		 int capacity = BTPageBytes.capacity(data);
+		 int i = from;
+		 for (; i < entries.length; i++) {
+			 KeyClass key = entries[i].key;
+			 if (i > from && BTPageBytes.pastHighKey(key, data))
+				 break;
+			 int pos = block.upperBound(key);
+			 block.insert(pos, key, ((LeafData) entries[i].data).getData());
+			 if (block.size() > capacity) {
+				 block.uninsert(pos);
+				 break;
+			 }
+		 }
+		 if (i > from)
+			 block.write(data);
+		 return i;
+	 }
  
-					 // 5) upEntry’s key is midEntry.key; upEntry’s data is newIndexPageId
-					 ((IndexData) upEntry.data).setData(newIndexPageId);
-				 }
-			 } else {
-				 // no split happened down below
-				 unpinPage(currentPageId);
-			 }
-		 }
-		 else if (currentPage.getType() == NodeType.LEAF) {
-			 // Current page is a leaf page
-			 BTLeafPage currentLeafPage = new BTLeafPage(page, headerPage.get_keyType());
-			 int entrySize = BT.getKeyDataLength(key, NodeType.LEAF);
-			 if (currentLeafPage.available_space() >= entrySize) {
-				 // There is space in the current leaf page
-				 currentLeafPage.insertRecord(key, rid);
-				 unpinPage(currentPageId, true); // Mark as dirty
-			 } else {
-				 // *** ADDED/UPDATED ***: Leaf page split
-				 BTLeafPage newLeafPage = new BTLeafPage(headerPage.get_keyType());
-				 PageId newLeafPageId = newLeafPage.getCurPage();
- 
-				 // 1) Gather all old records + the new one
-				 java.util.ArrayList<KeyDataEntry> allEntries = new java.util.ArrayList<>();
-				 RID scanRid = new RID();
-				 for (KeyDataEntry e = currentLeafPage.getFirst(scanRid);
-					  e != null;
-					  e = currentLeafPage.getNext(scanRid)) {
-					 allEntries.add(e);
-				 }
+	 /**
+	  * insert record with the given int key and rid into an integer index.
+	  * Same as insert(new IntegerKey(key), rid), but the descent and the leaf
+	  * insert compare and write the key as a primitive straight on the page
+	  * bytes; key objects are only made when a page splits.
+	  *
+	  * @param key
+	  *            the key of the record. Input parameter.
+	  * @param rid
+	  *            the rid of the record. Input parameter.
+	  * @exception KeyNotMatchException
+	  *                the index does not have integer keys
+	  * @exception IOException
+	  *                error from the lower layer
+	  * @exception LeafInsertRecException
+	  *                insert error in leaf page
+	  * @exception IndexInsertRecException
+	  *                insert error in index page
+	  * @exception ConstructPageException
+	  *                error in BT page constructor
+	  * @exception UnpinPageException
+	  *                error when unpin a page
+	  * @exception PinPageException
+	  *                error when pin a page
+	  * @exception NodeNotMatchException
+	  *                node not match index page nor leaf page
+	  */
+	 public void insert(int key, RID rid) throws KeyNotMatchException,
+			 LeafInsertRecException, IndexInsertRecException,
+			 ConstructPageException, UnpinPageException, PinPageException,
+			 NodeNotMatchException, IOException {
  
-				 // Clear old page
-				 scanRid = new RID();
-				 KeyDataEntry temp;
-				 temp = currentLeafPage.getFirst(scanRid);
-				 while (temp != null) {
-					 currentLeafPage.deleteSortedRecord(scanRid);
-					 temp = currentLeafPage.getFirst(scanRid);
-				 }
+		 if (headerPage.get_keyType() != AttrType.attrInteger)
+			 throw new KeyNotMatchException(null, "index does not have integer keys");
  
-				 // Add the new entry
-				 KeyDataEntry newEntry = new KeyDataEntry(key, rid);
-				 allEntries.add(newEntry);
+		 long started = metrics.begin();
+		 BTLatches latches = new BTLatches();
+		 try {
+			 insert(key, rid, latches);
+		 } finally {
+			 latches.releaseAll();
+			 metrics.end(BTMetrics.INSERT, started);
+		 }
+	 }
  
-				 // 2) Sort them
-				 allEntries.sort(new java.util.Comparator<KeyDataEntry>() {
-					 public int compare(KeyDataEntry o1, KeyDataEntry o2) {
-						 try{
-						 return BT.keyCompare(o1.key, o2.key);
-						 }
-						 catch (KeyNotMatchException e) {
-							 throw new RuntimeException(e);
-						 }
-					 }
-				 });
- 
-				 // 3) Redistribute half into old page, half into new leaf
-				 int total = allEntries.size();
-				 int splitAt = total / 2;
-				 for (int i = 0; i < splitAt; i++) {
-					 KeyDataEntry ent = allEntries.get(i);
-					 currentLeafPage.insertRecord(ent.key, ((LeafData) ent.data).getData());
-				 }
-				 for (int i = splitAt; i < total; i++) {
-					 KeyDataEntry ent = allEntries.get(i);
-					 newLeafPage.insertRecord(ent.key, ((LeafData) ent.data).getData());
-				 }
+	 /*
+	  * insert(int, RID) with latch crabbing, as insertRun does for a run of one.
+	  */
+	 private void insert(int key, RID rid, BTLatches latches)
+			 throws KeyNotMatchException, LeafInsertRecException,
+			 IndexInsertRecException, ConstructPageException,
+			 UnpinPageException, PinPageException, NodeNotMatchException,
+			 IOException {
  
-				 // 4) Fix the leaf pointers
-				 newLeafPage.setNextPage(currentLeafPage.getNextPage());
-				 newLeafPage.setPrevPage(currentPageId);
-				 currentLeafPage.setNextPage(newLeafPageId);
- 
-				 // If there's a right neighbor, update its prevPage pointer
-				 PageId rightId = newLeafPage.getNextPage();
-				 if (rightId.pid != INVALID_PAGE) {
-					 Page rightPg = pinPage(rightId);
-					 BTLeafPage rightLeaf = new BTLeafPage(rightPg, headerPage.get_keyType());
-					 rightLeaf.setPrevPage(newLeafPageId);
-					 unpinPage(rightId, true);
-				 }
+		 latches.exclusive(headerPageId.pid);
+		 if (rootId().pid == INVALID_PAGE) {
+			 insertFirst(new IntegerKey(key), rid);
+			 return;
+		 }
  
-				 // 5) The first key on newLeafPage is the "split key" to go upward
-				 RID dummyRid = new RID();
-				 KeyDataEntry firstNewLeafEntry = newLeafPage.getFirst(dummyRid);
+		 int[] path = new int[8];
+		 int[] slots = new int[8];
+		 int depth = 0;
  
-				 upEntry = new KeyDataEntry(firstNewLeafEntry.key, newLeafPageId);
+		 PageId currentPageId = rootId();
+		 latches.exclusive(currentPageId.pid);
+		 Page page = pinPage(currentPageId);
+		 BTSortedPage currentPage = new BTSortedPage(page, headerPage.get_keyType());
+		 if (insertSafe(currentPage))
+			 latches.keepLast(1);
+		 while (currentPage.getType() == NodeType.INDEX) {
+			 int slot = BTPageBytes.upperBound(currentPage.getpage(), key);
+			 PageId nextPageId = slot == 0 ? currentPage.getPrevPage()
+					 : new PageId(BTPageBytes.childAt(currentPage.getpage(), slot - 1));
+			 unpinPage(currentPageId);
  
-				 // 6) Unpin
-				 unpinPage(currentPageId, true);
-				 unpinPage(newLeafPageId, true);
+			 if (depth == path.length) {
+				 path = java.util.Arrays.copyOf(path, 2 * depth);
+				 slots = java.util.Arrays.copyOf(slots, 2 * depth);
 			 }
-		 } else {
-			 // Should not happen for B+ Tree
+			 path[depth] = currentPageId.pid;
+			 slots[depth++] = slot;
+ 
+			 currentPageId = nextPageId;
+			 latches.exclusive(currentPageId.pid);
+			 page = pinPage(currentPageId);
+			 currentPage = new BTSortedPage(page, headerPage.get_keyType());
+			 if (insertSafe(currentPage))
+				 latches.keepLast(1);
+		 }
+		 if (currentPage.getType() != NodeType.LEAF) {
 			 unpinPage(currentPageId);
+			 throw new NodeNotMatchException(null, "page is neither index nor leaf");
 		 }
+		 if (counted())
+			 addCounts(path, slots, -1, depth, 1);
  
-		 return upEntry;
-	 }
+		 if (compressedLeaves()) {
+			 postSplit(insertIntoCompressedLeaf(currentPage, new IntegerKey(key),
+					 rid, latches), path, slots, depth);
+			 return;
+		 }
  
-	 
+		 byte[] data = currentPage.getpage();
+		 if (currentPage.available_space() >= 12) {
+			 // <key, rid> is 12 bytes; after its duplicates, as insertRecord does
+			 BTPageBytes.insertLeafEntry(data, BTPageBytes.upperBound(data, key),
+					 key, rid);
+			 unpinPage(currentPageId, true);
+			 return;
+		 }
  
+		 KeyDataEntry upEntry = insertIntoLeaf(new BTLeafPage(page,
+				 headerPage.get_keyType()), new IntegerKey(key), rid, latches);
+		 postSplit(upEntry, path, slots, depth);
+	 }
  
+	 /*
+	  * Start an empty tree with a root leaf holding <key, rid>.
+	  */
+	 private void insertFirst(KeyClass key, RID rid) throws IOException,
+			 ConstructPageException, LeafInsertRecException,
+			 KeyNotMatchException, PinPageException, UnpinPageException {
+		 BTLeafPage newRootPage = allocLeafPage();
+		 PageId newRootPageId = newRootPage.getCurPage();
+		 newRootPage.setNextPage(new PageId(INVALID_PAGE));
+		 newRootPage.setPrevPage(new PageId(INVALID_PAGE));
+		 if (compressedLeaves()) {
+			 BTLeafBlock block = new BTLeafBlock(headerPage.get_keyType());
+			 block.insert(0, key, rid);
+			 block.write(newRootPage.getpage());
+		 } else {
+			 newRootPage.insertRecord(key, rid);
+		 }
+		 unpinPage(newRootPageId, true); // Mark as dirty
+		 updateHeader(newRootPageId); // Update the header with the new root
+	 }
  
-	 /**
-	  * delete leaf entry given its <key, rid> pair. `rid' is IN the data entry;
+	 /*
+	  * Post the split entry of a leaf up the insert path path[0..depth), with
+	  * slots[i] the slot of path[i] right after the child that was taken, and
+	  * grow a new root if the old one splits as well. In an index that keeps
+	  * counts, those of the path already take the new entry in.
+	  */
+	 private void postSplit(KeyDataEntry upEntry, int[] path, int[] slots,
+			 int depth) throws IOException, ConstructPageException,
+			 IndexInsertRecException, KeyNotMatchException,
+			 NodeNotMatchException, PinPageException, UnpinPageException {
+ 
+		 // Post splits upwards while the parent splits as well
+		 while (upEntry != null && depth > 0) {
+			 depth--;
+			 upEntry = insertIntoIndex(new PageId(path[depth]), slots[depth],
+					 upEntry);
+		 }
+ 
+		 if (upEntry != null) {
+			 // The root split, create a new root index page
+			 BTIndexPage newRootIndexPage = allocIndexPage();
+			 PageId newRootIndexPageId = newRootIndexPage.getCurPage();
+ 
+			 // Insert <splitKey, newChildPageId> into new root
+			 PageId child = ((IndexData) upEntry.data).getData();
+			 if (counted())
+				 BTPageBytes.insertIndexEntry(newRootIndexPage.getpage(), 0,
+						 upEntry.key, subtreeCount(child), child.pid);
+			 else
+				 newRootIndexPage.insertKey(upEntry.key, child);
+			 // The old root becomes left pointer
+			 newRootIndexPage.setPrevPage(rootId());
+			 if (counted())
+				 BTPageBytes.setChildCount(newRootIndexPage.getpage(), -1,
+						 subtreeCount(rootId()));
+ 
+			 unpinPage(newRootIndexPageId, true); // Mark as dirty
+			 updateHeader(newRootIndexPageId); // Update the header with the new root
+		 }
+	 }
+ 
+	 /*
+	  * Insert <key, rid> into the pinned leaf page, splitting it if it is full.
+	  * The leaf (and the new leaf, if any) is unpinned on return.
+	  * 
+	  * @return the <split key, new leaf> entry to post into the parent, or null
+	  * if the leaf did not split.
+	  */
+	 private KeyDataEntry insertIntoLeaf(BTLeafPage currentLeafPage, KeyClass key,
+			 RID rid, BTLatches latches) throws IOException, ConstructPageException,
+			 LeafInsertRecException, KeyNotMatchException, NodeNotMatchException,
+			 PinPageException, UnpinPageException {
+ 
+		 PageId currentPageId = currentLeafPage.getCurPage();
+		 int entrySize = BT.getKeyDataLength(key, NodeType.LEAF);
+		 if (currentLeafPage.available_space() >= entrySize) {
+			 // There is space in the current leaf page
+			 if (currentLeafPage.insertRecord(key, rid) == null)
+				 throw new LeafInsertRecException(null, "insert into leaf failed");
+			 unpinPage(currentPageId, true); // Mark as dirty
+			 return null;
+		 }
+ 
+		 // Leaf page split. The slot directory is already in key order, so
+		 // the upper half moves to the new leaf as raw records and the new
+		 // entry is then inserted into whichever half it belongs to.
+		 BTLeafPage newLeafPage = allocLeafPage();
+		 PageId newLeafPageId = newLeafPage.getCurPage();
+		 metrics.leafSplit();
+ 
+		 // 1) Move the upper half over. The split is made among the entries
+		 // with the new one in its place after its duplicates, so the half it
+		 // lands in has room for it.
+		 byte[] data = currentLeafPage.getpage();
+		 int pos = BTPageBytes.upperBound(data, key);
+		 int splitAt = leafSplit(data, pos, entrySize + HFPage.SIZE_OF_SLOT);
+		 int moveFrom = pos < splitAt ? splitAt - 1 : splitAt;
+		 BTPageBytes.copySlots(data, moveFrom, newLeafPage.getpage());
+		 BTPageBytes.truncate(data, moveFrom);
+ 
+		 // 2) Place the new entry; equal keys go right, after their duplicates.
+		 // The split key is the shortest key that still tells the halves
+		 // apart.
+		 BTLeafPage target = pos < splitAt ? currentLeafPage : newLeafPage;
+		 if (target.insertRecord(key, rid) == null)
+			 throw new LeafInsertRecException(null, "insert into leaf failed");
+		 KeyClass splitKey = BTPageBytes.separator(BTPageBytes.keyAt(data,
+				 BTPageBytes.slotCount(data) - 1, headerPage.get_keyType()),
+				 BTPageBytes.keyAt(newLeafPage.getpage(), 0, headerPage
+						 .get_keyType()));
+ 
+		 // 3) Fix the leaf pointers and high keys
+		 BTPageBytes.copyHighKey(currentLeafPage.getpage(), newLeafPage.getpage());
+		 BTPageBytes.setHighKey(currentLeafPage.getpage(), splitKey);
+		 newLeafPage.setNextPage(currentLeafPage.getNextPage());
+		 newLeafPage.setPrevPage(currentPageId);
+		 currentLeafPage.setNextPage(newLeafPageId);
+ 
+		 // If there's a right neighbor, update its prevPage pointer
+		 PageId rightId = newLeafPage.getNextPage();
+		 if (rightId.pid != INVALID_PAGE) {
+			 latches.exclusive(rightId.pid);
+			 Page rightPg = pinPage(rightId);
+			 BTLeafPage rightLeaf = new BTLeafPage(rightPg, headerPage.get_keyType());
+			 rightLeaf.setPrevPage(newLeafPageId);
+			 unpinPage(rightId, true);
+		 }
+ 
+		 // 4) Unpin
+		 unpinPage(currentPageId, true);
+		 unpinPage(newLeafPageId, true);
+ 
+		 // 5) The split key goes upward
+		 return new KeyDataEntry(splitKey, newLeafPageId);
+	 }
+ 
+	 /*
+	  * insertIntoLeaf for a compressed leaf: the entries are decoded, the new
+	  * one is added and the page is written back, or split by bytes in two
+	  * halves if they no longer fit.
+	  */
+	 private KeyDataEntry insertIntoCompressedLeaf(BTSortedPage currentLeafPage,
+			 KeyClass key, RID rid, BTLatches latches) throws IOException,
+			 ConstructPageException,
+			 KeyNotMatchException, PinPageException, UnpinPageException {
+ 
+		 PageId currentPageId = currentLeafPage.getCurPage();
+		 BTLeafBlock block = new BTLeafBlock(headerPage.get_keyType());
+		 block.read(currentLeafPage.getpage());
+		 block.insert(block.upperBound(key), key, rid);
+		 if (block.size() <= BTPageBytes.capacity(currentLeafPage.getpage())) {
+			 block.write(currentLeafPage.getpage());
+			 unpinPage(currentPageId, true);
+			 return null;
+		 }
+ 
+		 BTLeafPage newLeafPage = allocLeafPage();
+		 PageId newLeafPageId = newLeafPage.getCurPage();
+		 metrics.leafSplit();
+		 int splitAt = balancedSplit(block, BTPageBytes.capacity(currentLeafPage
+				 .getpage()));
+		 block.write(currentLeafPage.getpage(), 0, splitAt);
+		 block.write(newLeafPage.getpage(), splitAt, block.count);
+		 KeyClass splitKey = BTPageBytes.separator(block.keyAt(splitAt - 1),
+				 block.keyAt(splitAt));
+ 
+		 BTPageBytes.copyHighKey(currentLeafPage.getpage(), newLeafPage.getpage());
+		 BTPageBytes.setHighKey(currentLeafPage.getpage(), splitKey);
+		 newLeafPage.setNextPage(currentLeafPage.getNextPage());
+		 newLeafPage.setPrevPage(currentPageId);
+		 currentLeafPage.setNextPage(newLeafPageId);
+ 
+		 PageId rightId = newLeafPage.getNextPage();
+		 if (rightId.pid != INVALID_PAGE) {
+			 latches.exclusive(rightId.pid);
+			 BTSortedPage rightLeaf = new BTSortedPage(pinPage(rightId), headerPage
+					 .get_keyType());
+			 rightLeaf.setPrevPage(newLeafPageId);
+			 unpinPage(rightId, true);
+		 }
+ 
+		 unpinPage(currentPageId, true);
+		 unpinPage(newLeafPageId, true);
+		 return new KeyDataEntry(splitKey, newLeafPageId);
+	 }
+ 
+	 /*
+	  * Where to split the full leaf data when an entry of newSpace bytes (slot
+	  * included) is added as slot pos: the number of entries, the new one
+	  * counted, that stay on the left. The halves are balanced by bytes, as
+	  * far as each still fits a page; the max keysize is checked at create
+	  * time so that some split always does.
+	  */
+	 private static int leafSplit(byte[] data, int pos, int newSpace) {
+		 int count = BTPageBytes.slotCount(data) + 1;
+		 int[] space = new int[count];
+		 int total = 0;
+		 for (int i = 0; i < count; i++) {
+			 space[i] = i == pos ? newSpace : BTPageBytes.entrySpace(data,
+					 i < pos ? i : i - 1);
+			 total += space[i];
+		 }
+		 int capacity = BTPageBytes.capacity(data);
+		 int splitAt = 1;
+		 int left = space[0];
+		 while (splitAt < count - 1 && left < total / 2)
+			 left += space[splitAt++];
+		 while (splitAt < count - 1 && total - left > capacity)
+			 left += space[splitAt++];
+		 while (splitAt > 1 && left > capacity)
+			 left -= space[--splitAt];
+		 return splitAt;
+	 }
+
+	 /*
+	  * First entry of the right half when the entries of block are split in
+	  * two by bytes, so that neither page gets much more than half of them, as
+	  * far as each half still fits the capacity of a page.
+	  */
+	 private static int balancedSplit(BTLeafBlock block, int capacity) {
+		 int half = block.size() / 2;
+		 int splitAt = 1;
+		 while (splitAt < block.count - 1 && block.size(0, splitAt) < half)
+			 splitAt++;
+		 while (splitAt < block.count - 1
+				 && block.size(splitAt, block.count) > capacity)
+			 splitAt++;
+		 while (splitAt > 1 && block.size(0, splitAt) > capacity)
+			 splitAt--;
+		 return splitAt;
+	 }
+ 
+	 /*
+	  * Post the split entry upEntry of a child into the index page indexPageId,
+	  * splitting that page as well if it is full. Only here is a parent on the
+	  * insert path pinned a second time.
+	  * 
+	  * upEntry goes into slot pos, right after the entry of the child that
+	  * split. Going by key alone would put it after every equal separator and
+	  * take the new page out of leaf-chain order when a key has duplicates.
+	  * In an index that keeps counts, the entries under the new page are moved
+	  * from the count of the child that split to upEntry.
+	  * 
+	  * @return the entry to post one level further up, or null if the index
+	  * page had room.
+	  */
+	 private KeyDataEntry insertIntoIndex(PageId indexPageId, int pos,
+			 KeyDataEntry upEntry) throws IOException, ConstructPageException,
+			 IndexInsertRecException, KeyNotMatchException,
+			 NodeNotMatchException, PinPageException, UnpinPageException {
+ 
+		 BTIndexPage currentIndexPage = new BTIndexPage(pinPage(indexPageId),
+				 headerPage.get_keyType());
+		 PageId child = ((IndexData) upEntry.data).getData();
+		 int count = 0;
+		 if (counted()) {
+			 count = subtreeCount(child);
+			 byte[] data = currentIndexPage.getpage();
+			 BTPageBytes.setChildCount(data, pos - 1, BTPageBytes.childCount(data,
+					 pos - 1) - count);
+		 }
+		 int entrySize = BTPageBytes.keyLength(upEntry.key) + indexDataLength();
+		 if (currentIndexPage.available_space() >= entrySize) {
+			 // There is space in the current index page
+			 putIndexEntry(currentIndexPage.getpage(), pos, upEntry.key, count,
+					 child.pid);
+			 unpinPage(indexPageId, true);
+			 return null; // No further split at this level
+		 }
+ 
+		 // Index page split, see splitIndexPage
+		 BTIndexPage newIndexPage = allocIndexPage();
+		 PageId newIndexPageId = newIndexPage.getCurPage();
+		 metrics.indexSplit();
+		 splitIndexPage(currentIndexPage, newIndexPage, pos, upEntry, count);
+		 unpinPage(indexPageId, true);
+		 unpinPage(newIndexPageId, true);
+		 return upEntry;
+	 }
+ 
+	 
+ 
+ 
+ 
+	 /*
+	  * Split the full index page indexPage while adding upEntry, the split
+	  * entry of one of its children. Of the page's entries plus upEntry, taken
+	  * in key order, the lower half stays on indexPage, the middle one moves up
+	  * and the upper half goes to the empty newIndexPage, whose left-most
+	  * pointer becomes the middle entry's child.
+	  * 
+	  * The upper half is moved as raw records, upEntry belongs in slot pos and
+	  * upEntry itself is reused for the middle entry: on return it holds
+	  * <middle key, newIndexPage>. The middle key becomes the high key of
+	  * indexPage, which newIndexPage follows on the level. upCount is the
+	  * count of upEntry's child in an index that keeps counts.
+	  */
+	 private void splitIndexPage(BTIndexPage indexPage, BTIndexPage newIndexPage,
+			 int pos, KeyDataEntry upEntry, int upCount)
+			 throws KeyNotMatchException, IOException {
+ 
+		 byte[] data = indexPage.getpage();
+		 byte[] newData = newIndexPage.getpage();
+		 KeyClass key = upEntry.key;
+		 int child = ((IndexData) upEntry.data).getData().pid;
+ 
+		 int count = BTPageBytes.slotCount(data);
+		 int mid = (count + 1) / 2; // middle of the count + 1 entries
+ 
+		 int firstCount = upCount; // of the new page's left-most child
+		 if (mid == pos) {
+			 // upEntry itself moves up
+			 BTPageBytes.copySlots(data, pos, newData);
+			 BTPageBytes.truncate(data, pos);
+			 newIndexPage.setPrevPage(new PageId(child));
+		 } else if (mid < pos) {
+			 // slot mid moves up, upEntry goes to the new page
+			 BTPageBytes.copySlots(data, mid + 1, newData);
+			 upEntry.key = BTPageBytes.keyAt(data, mid, headerPage.get_keyType());
+			 newIndexPage.setPrevPage(new PageId(BTPageBytes.childAt(data, mid)));
+			 if (counted())
+				 firstCount = BTPageBytes.childCount(data, mid);
+			 BTPageBytes.truncate(data, mid);
+			 putIndexEntry(newData, pos - mid - 1, key, upCount, child);
+		 } else {
+			 // slot mid - 1 moves up, upEntry stays on this page
+			 BTPageBytes.copySlots(data, mid, newData);
+			 upEntry.key = BTPageBytes.keyAt(data, mid - 1, headerPage.get_keyType());
+			 newIndexPage.setPrevPage(new PageId(BTPageBytes.childAt(data, mid - 1)));
+			 if (counted())
+				 firstCount = BTPageBytes.childCount(data, mid - 1);
+			 BTPageBytes.truncate(data, mid - 1);
+			 putIndexEntry(data, pos, key, upCount, child);
+		 }
+		 if (counted())
+			 BTPageBytes.setChildCount(newData, -1, firstCount);
+		 ((IndexData) upEntry.data).setData(newIndexPage.getCurPage());
+ 
+		 BTPageBytes.copyHighKey(data, newData);
+		 BTPageBytes.setHighKey(data, upEntry.key);
+		 newIndexPage.setNextPage(indexPage.getNextPage());
+		 indexPage.setNextPage(newIndexPage.getCurPage());
+	 }
+ 
+	 /*
+	  * Insert the index entry <key, child> as slot pos, with count if the index
+	  * keeps counts.
+	  */
+	 private void putIndexEntry(byte[] data, int pos, KeyClass key, int count,
+			 int child) throws KeyNotMatchException {
+		 if (counted())
+			 BTPageBytes.insertIndexEntry(data, pos, key, count, child);
+		 else
+			 BTPageBytes.insertIndexEntry(data, pos, key, child);
+	 }
+ 
+	 /*
+	  * Add delta to the count of the child taken in each index page of the path
+	  * path[0..depth), which the caller holds latched. The child's entry is
+	  * slot slots[i] + shift of path[i], -1 for the left-most child.
+	  */
+	 private void addCounts(int[] path, int[] slots, int shift, int depth,
+			 int delta) throws PinPageException, UnpinPageException {
+		 for (int i = 0; i < depth; i++) {
+			 PageId pageno = new PageId(path[i]);
+			 byte[] data = pinPage(pageno).getpage();
+			 int slot = slots[i] + shift;
+			 BTPageBytes.setChildCount(data, slot, BTPageBytes.childCount(data,
+					 slot) + delta);
+			 unpinPage(pageno, true);
+		 }
+	 }
+ 
+	 /*
+	  * Number of leaf entries under a page of an index that keeps counts.
+	  */
+	 private int subtreeCount(BTSortedPage page) throws IOException {
+		 if (page.getType() == NodeType.LEAF)
+			 return leafCount(page);
+		 return BTPageBytes.subtreeCount(page.getpage());
+	 }
+ 
+	 private int subtreeCount(PageId pageno) throws IOException,
+			 PinPageException, UnpinPageException {
+		 int count = subtreeCount(new BTSortedPage(pinPage(pageno), headerPage
+				 .get_keyType()));
+		 unpinPage(pageno);
+		 return count;
+	 }
+ 
+	 /**
+	  * Build the tree bottom-up from <key, rid> pairs that are already sorted by
+	  * key. Leaves are filled left to right and every index level is built from
+	  * the first keys of the level below it, so each page is written exactly
+	  * once instead of paying a root-to-leaf descent per key. The index must be
+	  * empty, and no other thread may be using it.
+	  *
+	  * @param entries
+	  *            the <key, rid> pairs (LeafData entries) in ascending key
+	  *            order. Input parameter.
+	  * @param fillFactor
+	  *            fraction of each page to fill, in (0, 1]. Input parameter.
+	  * @exception InsertException
+	  *                index not empty, input not sorted or bad fill factor
+	  * @exception KeyTooLongException
+	  *                a key is longer than the max keysize
+	  * @exception KeyNotMatchException
+	  *                key is not integer key nor string key
+	  * @exception NodeNotMatchException
+	  *                entry data is not leaf data
+	  * @exception ConvertException
+	  *                error when convert between revord and byte array
+	  * @exception ConstructPageException
+	  *                error in BT page constructor
+	  * @exception UnpinPageException
+	  *                error when unpin a page
+	  * @exception PinPageException
+	  *                error when pin a page
+	  * @exception IOException
+	  *                error from the lower layer
+	  */
+	 public void bulkLoad(java.util.Iterator<KeyDataEntry> entries,
+			 float fillFactor) throws InsertException, KeyNotMatchException,
+			 NodeNotMatchException, ConvertException, ConstructPageException,
+			 UnpinPageException, PinPageException, KeyTooLongException,
+			 IOException {
+ 
+		 if (rootId().pid != INVALID_PAGE)
+			 throw new InsertException(null, "bulk load needs an empty index");
+		 if (fillFactor <= 0.0f || fillFactor > 1.0f)
+			 throw new InsertException(null, "fill factor out of range");
+ 
+		 int fillBytes = (int) (fillFactor * (MAX_SPACE - HFPage.DPFIXED - BTPageBytes
+				 .trailerLength(headerPage.get_maxKeySize())));
+ 
+		 // right-most open page of every level; levels[0] is the leaf level
+		 java.util.ArrayList<BTSortedPage> levels = new java.util.ArrayList<>();
+		 KeyClass lastKey = null;
+		 BTLeafBlock block = compressedLeaves() ? new BTLeafBlock(
+				 headerPage.get_keyType()) : null;
+ 
+		 while (entries.hasNext()) {
+			 KeyDataEntry entry = entries.next();
+			 if (!(entry.data instanceof LeafData))
+				 throw new NodeNotMatchException(null, "bulk load needs leaf entries");
+			 if (lastKey != null && BT.keyCompare(lastKey, entry.key) > 0)
+				 throw new InsertException(null, "bulk load input is not sorted");
+			 if (BTPageBytes.keyLength(entry.key) > headerPage.get_maxKeySize())
+				 throw new KeyTooLongException(null, "key longer than the max keysize");
+			 KeyClass prevKey = lastKey;
+			 lastKey = entry.key;
+			 RID rid = ((LeafData) entry.data).getData();
+ 
+			 // compressed leaves are built up in block and written when closed
+			 byte[] record = block == null ? BT.getBytesFromEntry(entry) : null;
+			 BTSortedPage leaf;
+			 if (levels.isEmpty()) {
+				 leaf = allocLeafPage();
+				 leaf.setNextPage(new PageId(INVALID_PAGE));
+				 leaf.setPrevPage(new PageId(INVALID_PAGE));
+				 levels.add(leaf);
+			 } else {
+				 leaf = levels.get(0);
+				 boolean fits;
+				 if (block != null) {
+					 block.insert(block.count, entry.key, rid);
+					 fits = block.count == 1 || block.size() <= fillBytes;
+					 block.remove(block.count - 1, block.count);
+				 } else {
+					 fits = bulkFits(leaf, record.length, fillBytes);
+				 }
+				 if (!fits) {
+					 BTLeafPage newLeaf = allocLeafPage();
+					 newLeaf.setNextPage(new PageId(INVALID_PAGE));
+					 newLeaf.setPrevPage(leaf.getCurPage());
+					 leaf.setNextPage(newLeaf.getCurPage());
+					 KeyClass splitKey = BTPageBytes.separator(prevKey, entry.key);
+					 BTPageBytes.setHighKey(leaf.getpage(), splitKey);
+ 
+					 // the full leaf is final now, write it out once
+					 if (block != null) {
+						 block.write(leaf.getpage());
+						 block.remove(0, block.count);
+					 }
+					 unpinPage(leaf.getCurPage(), true);
+					 levels.set(0, newLeaf);
+					 bulkPushUp(levels, 1, splitKey, newLeaf.getCurPage(),
+							 leaf.getCurPage(), fillBytes);
+					 leaf = newLeaf;
+				 }
+			 }
+			 if (block != null)
+				 block.insert(block.count, entry.key, rid);
+			 else
+				 leaf.insertRecord(record);
+		 }
+ 
+		 if (levels.isEmpty())
+			 return; // nothing to load, tree stays empty
+ 
+		 if (block != null)
+			 block.write(levels.get(0).getpage());
+		 PageId rootId = levels.get(levels.size() - 1).getCurPage();
+		 for (int i = 0; i < levels.size(); i++)
+			 unpinPage(levels.get(i).getCurPage(), true);
+		 if (counted())
+			 recount(rootId);
+		 updateHeader(rootId);
+	 }
+ 
+	 /*
+	  * Fill in the counts under page pageno of an index that keeps counts, for
+	  * bulkLoad, which adds the entry of a page before the page is filled.
+	  * Returns the number of leaf entries under pageno.
+	  */
+	 private int recount(PageId pageno) throws IOException, PinPageException,
+			 UnpinPageException {
+		 BTSortedPage page = new BTSortedPage(pinPage(pageno), headerPage
+				 .get_keyType());
+		 if (page.getType() == NodeType.LEAF) {
+			 int count = leafCount(page);
+			 unpinPage(pageno);
+			 return count;
+		 }
+		 byte[] data = page.getpage();
+		 int total = 0;
+		 for (int slot = -1; slot < page.getSlotCnt(); slot++) {
+			 int count = recount(new PageId(slot < 0 ? page.getPrevPage().pid
+					 : BTPageBytes.childAt(data, slot)));
+			 BTPageBytes.setChildCount(data, slot, count);
+			 total += count;
+		 }
+		 unpinPage(pageno, true);
+		 return total;
+	 }
+ 
+	 /*
+	  * Add <key, child> to the right-most page of index level `level', where
+	  * `leftChild' is the page just left of `child'. A full page is closed and
+	  * a new one is started with `child' as its left-most pointer; the key then
+	  * moves up one more level instead of being stored here.
+	  */
+	 private void bulkPushUp(java.util.ArrayList<BTSortedPage> levels,
+			 int level, KeyClass key, PageId child, PageId leftChild,
+			 int fillBytes) throws KeyNotMatchException, NodeNotMatchException,
+			 ConvertException, ConstructPageException, UnpinPageException,
+			 PinPageException, IOException {
+ 
+		 int length = BTPageBytes.keyLength(key) + indexDataLength();
+		 if (level == levels.size()) {
+			 BTIndexPage newIndexPage = allocIndexPage();
+			 newIndexPage.setPrevPage(leftChild);
+			 levels.add(newIndexPage);
+		 }
+ 
+		 BTSortedPage indexPage = levels.get(level);
+		 if (bulkFits(indexPage, length, fillBytes)) {
+			 putIndexEntry(indexPage.getpage(), indexPage.getSlotCnt(), key, 0,
+					 child.pid);
+			 return;
+		 }
+ 
+		 BTIndexPage newIndexPage = allocIndexPage();
+		 newIndexPage.setPrevPage(child);
+		 BTPageBytes.setHighKey(indexPage.getpage(), key);
+		 indexPage.setNextPage(newIndexPage.getCurPage());
+		 unpinPage(indexPage.getCurPage(), true);
+		 levels.set(level, newIndexPage);
+		 bulkPushUp(levels, level + 1, key, newIndexPage.getCurPage(),
+				 indexPage.getCurPage(), fillBytes);
+	 }
+ 
+	 /*
+	  * A record fits if the page is empty, or if it stays within the fill
+	  * target and the physical free space.
+	  */
+	 private boolean bulkFits(BTSortedPage page, int recordLength, int fillBytes)
+			 throws IOException {
+		 if (page.getSlotCnt() == 0)
+			 return true;
+		 int used = BTPageBytes.usedSpace(page.getpage());
+		 return used + recordLength + HFPage.SIZE_OF_SLOT <= fillBytes
+				 && page.available_space() >= recordLength;
+	 }
+	 /**
+	  * delete leaf entry given its <key, rid> pair. `rid' is IN the data entry;
 	  * it is not the id of the data entry)
 	  *
 	  * @param key
@@ -666,10 +1634,49 @@
 			 IndexFullDeleteException, LeafDeleteException, IteratorException,
 			 ConstructPageException, DeleteRecException, IndexSearchException,
 			 IOException {
-		 if (headerPage.get_deleteFashion() == DeleteFashion.NAIVE_DELETE)
-			 return NaiveDelete(key, rid);
-		 else
-			 throw new DeleteFashionException(null, "");
+		 long started = metrics.begin();
+		 BTLatches latches = new BTLatches();
+		 boolean deleted;
+		 try {
+			 // an index that keeps counts needs the path to the leaf, which
+			 // only the descent of full delete remembers
+			 if (headerPage.get_deleteFashion() == DeleteFashion.NAIVE_DELETE)
+				 deleted = counted() ? FullDelete(key, rid, latches, true, false)
+						 : NaiveDelete(key, rid, latches);
+			 else if (headerPage.get_deleteFashion() == DeleteFashion.FULL_DELETE)
+				 deleted = FullDelete(key, rid, latches, false, true);
+			 else
+				 throw new DeleteFashionException(null, "");
+		 } finally {
+			 latches.releaseAll();
+			 metrics.end(BTMetrics.DELETE, started);
+		 }
+		 try {
+			 freeRetired(false);
+		 } catch (FreePageException e) {
+			 // the delete is done; the pages stay retired and a later
+			 // delete or close() frees them
+		 }
+		 return deleted;
+	 }
+ 
+	 /*
+	  * Free the pages full delete took out of the tree that no optimistic
+	  * reader can still be looking at (see BTLatches.retire), or all of them
+	  * when the index is closing. If one cannot be freed, it and the ones
+	  * after it are retired again.
+	  */
+	 private void freeRetired(boolean closing) throws FreePageException {
+		 int[] pids = BTLatches.reclaim(headerPageId.pid, closing);
+		 for (int i = 0; i < pids.length; i++) {
+			 try {
+				 freePage(new PageId(pids[i]));
+			 } catch (FreePageException e) {
+				 for (int j = i; j < pids.length; j++)
+					 BTLatches.retire(pids[j], headerPageId.pid);
+				 throw e;
+			 }
+		 }
 	 }
  
 	 /*
@@ -692,116 +1699,398 @@
 	  * @return return a BTLeafPage instance which is pinned. null if no key was
 	  * found.
 	  *
+	  * Pages are latched shared into `latches' one at a time, and the leaf
+	  * returned is left latched, exclusively if forUpdate; nothing is left
+	  * latched when null is returned. The caller releases `latches'.
+	  *
 	  *  ASantra [1/7/2023]: Modified]
 	  */
  
   
  
-	 BTLeafPage findRunStart(KeyClass lo_key, RID startrid) throws IOException,
-			 IteratorException, KeyNotMatchException, ConstructPageException,
-			 PinPageException, UnpinPageException {
-		 BTLeafPage pageLeaf;
-		 BTIndexPage pageIndex;
-		 Page page;
+	 BTLeafPage findRunStart(KeyClass lo_key, RID startrid, BTLatches latches,
+			 boolean forUpdate) throws IOException, IteratorException,
+			 KeyNotMatchException, ConstructPageException, PinPageException,
+			 UnpinPageException {
 		 BTSortedPage sortPage;
-		 PageId pageno;
-		 PageId curpageno = null; // Iterator
-		 PageId prevpageno;
-		 PageId nextpageno;
-		 RID curRid;
-		 KeyDataEntry curEntry;
+		 int slot = 0;
  
-		 pageno = headerPage.get_rootId();
+		 // ASSERTION
+		 // - sortPage is latched and pinned; null when a step across a link
+		 //   found the link stale, and the descent starts over
+		 do {
+			 sortPage = optimisticDescend(lo_key, latches, forUpdate);
+			 if (sortPage == null) {
+				 sortPage = latchRoot(latches);
+				 if (sortPage == null)
+					 return null; // no pages in the BTREE
+				 sortPage = descend(sortPage, lo_key, latches, forUpdate);
+				 if (sortPage == null)
+					 continue;
+			 }
  
-		 if (pageno.pid == INVALID_PAGE) { // no pages in the BTREE
-			 pageLeaf = null; // should be handled by
-			 // startrid =INVALID_PAGEID ; // the caller
-			 return pageLeaf;
-		 }
+			 // first slot with key >= lo_key; if it is past the end of this
+			 // leaf (or the leaf is empty), the run starts on a page to the right
+			 slot = leafLowerBound(sortPage, lo_key);
+			 while (slot == leafCount(sortPage)) {
+				 if (sortPage.getNextPage().pid == INVALID_PAGE) {
+					 // oops, no more records, so set this scan to indicate this.
+					 unpinPage(sortPage.getCurPage());
+					 latches.release(sortPage.getCurPage().pid);
+					 return null;
+				 }
+				 if (leafCount(sortPage) == 0)
+					 metrics.emptyLeafSkipped();
+				 sortPage = follow(sortPage, sortPage.getNextPage().pid, latches,
+						 forUpdate);
+				 if (sortPage == null)
+					 break;
+				 slot = leafLowerBound(sortPage, lo_key);
+			 }
+		 } while (sortPage == null);
  
-		 page = pinPage(pageno);
-		 sortPage = new BTSortedPage(page, headerPage.get_keyType());
+		 // ASSERTIONS:
+		 // - startrid: the first record >= lo_key
+		 // - sortPage valid, latched and pinned;
+		 // scan will unpin it when done
+		 startrid.pageNo = new PageId(sortPage.getCurPage().pid);
+		 startrid.slotNo = slot;
+		 return new BTLeafPage(sortPage, headerPage.get_keyType());
+	 }
  
-		 if (trace != null) {
-			 trace.writeBytes("VISIT node " + pageno + lineSep);
-			 trace.flush();
+	 /*
+	  * Go down from the latched and pinned page sortPage to the leaf where the
+	  * run of lo_key starts, the left-most leaf for a null lo_key. A page that
+	  * lo_key is past the high key of split after the link to it was read, and
+	  * the descent goes on to its right. The leaf is latched exclusively if
+	  * forUpdate. Returns null, holding nothing, if the descent has to start
+	  * over.
+	  */
+	 private BTSortedPage descend(BTSortedPage sortPage, KeyClass lo_key,
+			 BTLatches latches, boolean forUpdate) throws IOException,
+			 KeyNotMatchException, PinPageException, UnpinPageException {
+		 boolean exclusive = false;
+		 while (sortPage != null) {
+			 byte[] data = sortPage.getpage();
+			 if (lo_key != null && BTPageBytes.pastHighKey(lo_key, data)) {
+				 sortPage = follow(sortPage, sortPage.getNextPage().pid, latches,
+						 exclusive);
+			 } else if (sortPage.getType() == NodeType.INDEX) {
+				 BTTrace.visit(sortPage.getCurPage().pid);
+				 // binary search the slot directory; go left on equal keys
+				 int child = lo_key == null ? sortPage.getPrevPage().pid
+						 : BTPageBytes.firstChildFor(data, lo_key);
+				 sortPage = follow(sortPage, child, latches, false);
+			 } else if (forUpdate && !exclusive) {
+				 sortPage = follow(sortPage, sortPage.getCurPage().pid, latches,
+						 true);
+				 exclusive = true;
+			 } else {
+				 BTTrace.visit(sortPage.getCurPage().pid);
+				 return sortPage;
+			 }
 		 }
+		 return null;
+	 }
  
-		 // ASSERTION
-		 // - pageno and sortPage is the root of the btree
-		 // - pageno and sortPage valid and pinned
- 
-		 while (sortPage.getType() == NodeType.INDEX) {
-			 pageIndex = new BTIndexPage(page, headerPage.get_keyType());
-			 prevpageno = pageIndex.getPrevPage();
-			 curEntry = pageIndex.getFirst(startrid);
-			 while (curEntry != null && lo_key != null
-					 && BT.keyCompare(curEntry.key, lo_key) < 0) {
+	 /*
+	  * Position of the first entry of a leaf whose key is not less than key
+	  * (0 for a null key), and the number of entries on the leaf, in either
+	  * leaf format.
+	  */
+	 private int leafLowerBound(BTSortedPage leaf, KeyClass key)
+			 throws KeyNotMatchException {
+		 if (key == null)
+			 return 0;
+		 if (compressedLeaves())
+			 return BTLeafBlock.lowerBound(leaf.getpage(), key);
+		 return BTPageBytes.lowerBound(leaf.getpage(), key);
+	 }
  
-				 prevpageno = ((IndexData) curEntry.data).getData();
-				 curEntry = pageIndex.getNext(startrid);
-			 }
+	 /*
+	  * Position of the first entry of a leaf whose key is greater than key.
+	  */
+	 private int leafUpperBound(BTSortedPage leaf, KeyClass key)
+			 throws KeyNotMatchException, IOException {
+		 if (compressedLeaves()) {
+			 BTLeafBlock block = new BTLeafBlock(headerPage.get_keyType());
+			 block.read(leaf.getpage());
+			 return block.upperBound(key);
+		 }
+		 return BTPageBytes.upperBound(leaf.getpage(), key);
+	 }
  
-			 unpinPage(pageno);
+	 private int leafLowerBound(BTSortedPage leaf, int key) {
+		 if (compressedLeaves())
+			 return BTLeafBlock.lowerBound(leaf.getpage(), key);
+		 return BTPageBytes.lowerBound(leaf.getpage(), key);
+	 }
  
-			 pageno = prevpageno;
-			 page = pinPage(pageno);
-			 sortPage = new BTSortedPage(page, headerPage.get_keyType());
+	 private int leafCount(BTSortedPage leaf) {
+		 if (compressedLeaves())
+			 return BTLeafBlock.count(leaf.getpage());
+		 return BTPageBytes.slotCount(leaf.getpage());
+	 }
  
-			 if (trace != null) {
-				 trace.writeBytes("VISIT node " + pageno + lineSep);
-				 trace.flush();
+	 /*
+	  * findRunStart for an integer index: the same descent, latching and leaf
+	  * positioning, with lo_key compared as a primitive on the leaf bytes.
+	  */
+	 BTLeafPage findRunStart(int lo_key, RID startrid, BTLatches latches,
+			 boolean forUpdate) throws IOException, ConstructPageException,
+			 KeyNotMatchException, PinPageException, UnpinPageException {
+		 BTSortedPage sortPage;
+		 int slot = 0;
+		 KeyClass key = new IntegerKey(lo_key); // for the index levels
+ 
+		 do {
+			 sortPage = optimisticDescend(key, latches, forUpdate);
+			 if (sortPage == null) {
+				 sortPage = latchRoot(latches);
+				 if (sortPage == null)
+					 return null;
+				 sortPage = descend(sortPage, key, latches, forUpdate);
+				 if (sortPage == null)
+					 continue;
 			 }
  
-		 }
+			 slot = leafLowerBound(sortPage, lo_key);
+			 while (slot == leafCount(sortPage)) {
+				 if (sortPage.getNextPage().pid == INVALID_PAGE) {
+					 unpinPage(sortPage.getCurPage());
+					 latches.release(sortPage.getCurPage().pid);
+					 return null;
+				 }
+				 if (leafCount(sortPage) == 0)
+					 metrics.emptyLeafSkipped();
+				 sortPage = follow(sortPage, sortPage.getNextPage().pid, latches,
+						 forUpdate);
+				 if (sortPage == null)
+					 break;
+				 slot = leafLowerBound(sortPage, lo_key);
+			 }
+		 } while (sortPage == null);
  
-		 pageLeaf = new BTLeafPage(page, headerPage.get_keyType());
+		 startrid.pageNo = new PageId(sortPage.getCurPage().pid);
+		 startrid.slotNo = slot;
+		 return new BTLeafPage(sortPage, headerPage.get_keyType());
+	 }
  
-		 curEntry = pageLeaf.getFirst(startrid);
-		 while (curEntry == null) {
-			 // skip empty leaf pages off to left
-			 nextpageno = pageLeaf.getNextPage();
-			 unpinPage(pageno);
-			 if (nextpageno.pid == INVALID_PAGE) {
-				 // oops, no more records, so set this scan to indicate this.
+	 /*
+	  * The other end of a run: the leaf that holds the right-most occurrence of
+	  * `hi_key', the right-most leaf for a null hi_key, latched shared and
+	  * pinned, or null if there are no pages. Its entries may all be greater
+	  * than hi_key (the keys up to it then end on the leaf before); the caller
+	  * positions on it and releases `latches'.
+	  *
+	  * This is the latched descent of findRunStart, taking the last child for
+	  * hi_key at each level and moving right while a page to the right may still
+	  * hold it. A reverse scan positions once, so it does without the optimistic
+	  * descent.
+	  */
+	 BTLeafPage findRunEnd(KeyClass hi_key, BTLatches latches)
+			 throws IOException, KeyNotMatchException, ConstructPageException,
+			 PinPageException, UnpinPageException {
+		 BTSortedPage sortPage;
+		 do {
+			 sortPage = latchRoot(latches);
+			 if (sortPage == null)
 				 return null;
+			 while (sortPage != null) {
+				 byte[] data = sortPage.getpage();
+				 if (BTPageBytes.reachesHighKey(hi_key, data)) {
+					 sortPage = follow(sortPage, sortPage.getNextPage().pid, latches,
+							 false);
+				 } else if (sortPage.getType() == NodeType.INDEX) {
+					 sortPage = follow(sortPage, BTPageBytes.lastChildFor(data,
+							 hi_key), latches, false);
+				 } else {
+					 break;
+				 }
 			 }
+		 } while (sortPage == null);
+		 return new BTLeafPage(sortPage, headerPage.get_keyType());
+	 }
  
-			 pageno = nextpageno;
-			 pageLeaf = new BTLeafPage(pinPage(pageno), headerPage.get_keyType());
-			 curEntry = pageLeaf.getFirst(startrid);
+	 /*
+	  * Find the leaf for findRunStart without latching the pages above it
+	  * (optimistic lock coupling). The root id and every index page are read
+	  * under an optimistic stamp of their latch, which is validated once the
+	  * link to follow has been read; a page a writer holds or changed meanwhile
+	  * starts the descent over, OPTIMISTIC_TRIES times at most. Only the leaf
+	  * is latched, exclusively if forUpdate. Pages on the levels indexCache
+	  * keeps are read from their copy there while it is valid, and are not
+	  * pinned.
+	  *
+	  * Returns the leaf latched and pinned, or null if the tree is empty or the
+	  * descent gave up; the latched descent takes over then.
+	  */
+	 private BTSortedPage optimisticDescend(KeyClass lo_key, BTLatches latches,
+			 boolean forUpdate) throws IOException, KeyNotMatchException,
+			 PinPageException, UnpinPageException {
+		 BTLatches.beginOptimistic();
+		 try {
+			 for (int tries = 0; tries < OPTIMISTIC_TRIES; tries++) {
+				 long stamp = BTLatches.optimistic(headerPageId.pid);
+				 PageId pageno = rootId();
+				 long shifts = BTLatches.shifts();
+				 if (stamp == 0 || !BTLatches.validate(headerPageId.pid, stamp))
+					 continue;
+				 if (pageno.pid == INVALID_PAGE)
+					 return null;
+				 BTSortedPage leaf = optimisticPath(pageno, shifts, lo_key,
+						 latches, forUpdate);
+				 if (leaf != null)
+					 return leaf;
+			 }
+			 return null;
+		 } finally {
+			 BTLatches.endOptimistic();
 		 }
+	 }
  
-		 // ASSERTIONS:
-		 // - curkey, curRid: contain the first record on the
-		 // current leaf page (curkey its key, cur
-		 // - pageLeaf, pageno valid and pinned
+	 private static final int OPTIMISTIC_TRIES = 4;
  
-		 if (lo_key == null) {
-			 return pageLeaf;
-			 // note that pageno/pageLeaf is still pinned;
-			 // scan will unpin it when done
-		 }
+	 /*
+	  * One optimistic descent from the root, page pageno, reached through a link
+	  * read while BTLatches.shifts() was `shifts'. Returns null, holding
+	  * nothing, if it has to start over.
+	  */
+	 private BTSortedPage optimisticPath(PageId pageno, long shifts,
+			 KeyClass lo_key, BTLatches latches, boolean forUpdate)
+			 throws IOException, KeyNotMatchException, PinPageException,
+			 UnpinPageException {
+		 int depth = 0; // levels below the root
+		 while (true) {
+			 boolean keep = indexCache.keeps(depth);
+			 BTIndexCache.Entry copy = keep ? indexCache.get(pageno.pid) : null;
+			 if (copy != null) {
+				 // as below, with the copy for the page: it is good if no writer
+				 // latched the page since it was read
+				 if (BTLatches.shifts() != shifts)
+					 return null;
+				 boolean right = copy.pastHighKey(lo_key);
+				 int next = right ? copy.nextPage : copy.firstChildFor(lo_key);
+				 long nextShifts = BTLatches.shifts();
+				 if (BTLatches.validate(pageno.pid, copy.stamp)) {
+					 BTTrace.visit(pageno.pid);
+					 if (!right)
+						 depth++;
+					 pageno = new PageId(next);
+					 shifts = nextShifts;
+					 continue;
+				 }
+			 }
  
-		 while (BT.keyCompare(curEntry.key, lo_key) < 0) {
-			 curEntry = pageLeaf.getNext(startrid);
-			 while (curEntry == null) { // have to go right
-				 nextpageno = pageLeaf.getNextPage();
+			 BTSortedPage sortPage = new BTSortedPage(pinPage(pageno), headerPage
+					 .get_keyType());
+			 long stamp = BTLatches.optimistic(pageno.pid);
+			 if (stamp == 0 || BTLatches.shifts() != shifts) {
 				 unpinPage(pageno);
+				 return null;
+			 }
+ 
+			 int next;
+			 boolean right = false;
+			 copy = null;
+			 try {
+				 byte[] data = sortPage.getpage();
+				 if (sortPage.getType() == NodeType.LEAF)
+					 next = INVALID_PAGE;
+				 else if (lo_key != null && BTPageBytes.pastHighKey(lo_key, data)) {
+					 next = sortPage.getNextPage().pid;
+					 right = true;
+				 } else
+					 next = lo_key == null ? sortPage.getPrevPage().pid
+							 : BTPageBytes.firstChildFor(data, lo_key);
+				 if (keep && next != INVALID_PAGE)
+					 copy = new BTIndexCache.Entry(data, headerPage.get_keyType(),
+							 stamp);
+			 } catch (RuntimeException e) {
+				 // the page changed under us and did not make sense
+				 next = INVALID_PAGE - 1;
+			 }
+			 long nextShifts = BTLatches.shifts();
+			 if (!BTLatches.validate(pageno.pid, stamp) || next == INVALID_PAGE - 1) {
+				 unpinPage(pageno);
+				 return null;
+			 }
  
-				 if (nextpageno.pid == INVALID_PAGE) {
+			 if (next == INVALID_PAGE) {
+				 // the leaf: latch it, then it is as in the latched descent,
+				 // which relatches it exclusively for an update
+				 latches.shared(pageno.pid);
+				 if (BTLatches.shifts() != shifts) {
+					 unpinPage(pageno);
+					 latches.release(pageno.pid);
 					 return null;
 				 }
+				 return descend(sortPage, lo_key, latches, forUpdate);
+			 }
  
-				 pageno = nextpageno;
-				 pageLeaf = new BTLeafPage(pinPage(pageno),
-						 headerPage.get_keyType());
+			 if (copy != null)
+				 indexCache.put(pageno.pid, copy);
+			 BTTrace.visit(pageno.pid);
+			 unpinPage(pageno);
+			 if (!right)
+				 depth++;
+			 pageno = new PageId(next);
+			 shifts = nextShifts;
+		 }
+	 }
  
-				 curEntry = pageLeaf.getFirst(startrid);
-			 }
+	 /*
+	  * The root page, latched shared and pinned, or null if the tree is empty.
+	  */
+	 private BTSortedPage latchRoot(BTLatches latches) throws IOException,
+			 PinPageException {
+		 while (true) {
+			 latches.shared(headerPageId.pid);
+			 PageId rootId = rootId();
+			 long shifts = BTLatches.shifts();
+			 latches.release(headerPageId.pid);
+			 if (rootId.pid == INVALID_PAGE)
+				 return null;
+			 BTSortedPage root = latchPage(rootId, shifts, latches, false);
+			 if (root != null)
+				 return root;
 		 }
+	 }
+ 
+	 /*
+	  * One step of a reader: let go of the latched and pinned page `from', then
+	  * latch and pin page pid, which it links to (or `from' itself, to latch it
+	  * in another mode). Returns null, holding neither, if the link may have
+	  * gone stale in between.
+	  */
+	 private BTSortedPage follow(BTSortedPage from, int pid, BTLatches latches,
+			 boolean exclusive) throws IOException, PinPageException,
+			 UnpinPageException {
+		 long shifts = BTLatches.shifts();
+		 PageId fromId = from.getCurPage();
+		 unpinPage(fromId);
+		 latches.release(fromId.pid);
+		 return latchPage(new PageId(pid), shifts, latches, exclusive);
+	 }
  
-		 return pageLeaf;
+	 /*
+	  * Latch and pin page pageno, reached through a link read while
+	  * BTLatches.shifts() was `shifts'. Returns null, holding nothing, if it
+	  * has changed since: the page may have lost entries to the left or been
+	  * freed.
+	  */
+	 private BTSortedPage latchPage(PageId pageno, long shifts,
+			 BTLatches latches, boolean exclusive) throws IOException,
+			 PinPageException {
+		 if (exclusive)
+			 latches.exclusive(pageno.pid);
+		 else
+			 latches.shared(pageno.pid);
+		 if (BTLatches.shifts() != shifts) {
+			 latches.release(pageno.pid);
+			 return null;
+		 }
+		 return new BTSortedPage(pinPage(pageno), headerPage.get_keyType());
 	 }
  
 	 /*
@@ -812,82 +2101,581 @@
 	  * We don't do merging or redistribution, but do allow duplicates.
 	  * 
 	  * Page containing first occurrence of key `key' is found for us by
-	  * findRunStart. We then iterate for (just a few) pages, if necesary, to
-	  * find the one containing <key,rid>, which we then delete via
-	  * BTLeafPage::delUserRid.
+	  * findRunStart, which also positions startrid on it. We then walk the run
+	  * of equal keys, across pages if necessary, comparing slots in place until
+	  * we find <key,rid>, which we then delete from the leaf.
 	  */
  
-	  private boolean NaiveDelete(KeyClass key, RID rid)
+	  private boolean NaiveDelete(KeyClass key, RID rid, BTLatches latches)
 	  throws LeafDeleteException, KeyNotMatchException, PinPageException,
 	  ConstructPageException, IOException, UnpinPageException,
-	  PinPageException, IndexSearchException, IteratorException {
+	  PinPageException, IndexSearchException, IteratorException,
+	  DeleteRecException {
  
-	 // [ASantra: 1/23/2025] Remove the return statement and start your code.
-	 // Find the starting leaf page for the key
-		 BTLeafPage leafPage = findRunStart(key, new RID());
+		 RID curRid = new RID();
+		 BTLeafPage leafPage = findRunStart(key, curRid, latches, true);
 		 if (leafPage == null) 
 		 {
 			 return false; // Key not found
 		 }
+		 BTLeafBlock block = compressedLeaves() ? new BTLeafBlock(headerPage
+				 .get_keyType()) : null;
+		 int slot = curRid.slotNo;
 		 while (true) 
 		 {
-		 RID curRid = new RID();
-		 KeyDataEntry entry = leafPage.getFirst(curRid);
-		 
-		 // While entry is null, go to the next page
-		 while (entry == null) 
-		 {
-			 PageId nextPageId = leafPage.getNextPage();
-			 unpinPage(leafPage.getCurPage(), false); // Unpin without marking dirty
-			 
-			 if (nextPageId.pid == INVALID_PAGE) 
-			 {
-				 return false; // No more pages to check
-			 }
-			 
-			 // Initialize leafPage to nextPage and pin it
-			 leafPage = new BTLeafPage(pinPage(nextPageId), headerPage.get_keyType());
-			 entry = leafPage.getFirst(curRid);
-		 }
-		 
+		 slot = findInRun(leafPage, block, slot, key, rid);
 		 // Check if we've passed the key
-		 if (BT.keyCompare(key, entry.key) < 0) 
+		 if (slot == RUN_ENDED) 
 		 {
 			 unpinPage(leafPage.getCurPage(), false);
 			 return false; // Key not found (we've gone too far)
 		 }
-		 
-		 // Try to delete the entry
-		 if (leafPage.delEntry(new KeyDataEntry(key, rid))) 
+		 if (slot != RUN_GOES_ON) 
 		 {
+			 deleteFromLeaf(leafPage, block, slot);
 			 unpinPage(leafPage.getCurPage(), true); // Mark as dirty since we modified
 			 return true; // Successfully deleted
 		 }
-		 
+ 
 		 // Go to the next page
 		 PageId nextPageId = leafPage.getNextPage();
+		 if (nextPageId.pid != INVALID_PAGE)
+			 latches.exclusive(nextPageId.pid);
+		 latches.release(leafPage.getCurPage().pid);
 		 unpinPage(leafPage.getCurPage(), false);
-		 
+ 
 		 if (nextPageId.pid == INVALID_PAGE) 
 		 {
 			 return false; // No more pages to check
 		 }
-		 
+ 
 		 // Initialize leafPage to nextPage and pin it
 		 leafPage = new BTLeafPage(pinPage(nextPageId), headerPage.get_keyType());
+		 slot = 0;
 		 }
 	 }
-	 /**
-	  * create a scan with given keys Cases: (1) lo_key = null, hi_key = null
-	  * scan the whole index (2) lo_key = null, hi_key!= null range scan from min
-	  * to the hi_key (3) lo_key!= null, hi_key = null range scan from the lo_key
-	  * to max (4) lo_key!= null, hi_key!= null, lo_key = hi_key exact match (
-	  * might not unique) (5) lo_key!= null, hi_key!= null, lo_key < hi_key range
-	  * scan from lo_key to hi_key
+ 
+	 private static final int RUN_ENDED = -1;
+	 private static final int RUN_GOES_ON = -2;
+ 
+	 /*
+	  * Look for <key, rid> on a leaf from entry `slot' on, inside the run of
+	  * `key'. Returns its position, RUN_ENDED if the run ends on this leaf
+	  * without it, or RUN_GOES_ON if the run may go on in the next leaf. For
+	  * compressed leaves block is loaded with the leaf; it is null otherwise.
+	  */
+	 private int findInRun(BTSortedPage leaf, BTLeafBlock block, int slot,
+			 KeyClass key, RID rid) throws KeyNotMatchException {
+		 byte[] data = leaf.getpage();
+		 if (block != null)
+			 block.read(data);
+		 int count = block != null ? block.count : BTPageBytes.slotCount(data);
+		 for (; slot < count; slot++) {
+			 int cmp = block != null ? block.compare(key, slot) : BTPageBytes
+					 .compareKey(key, data, slot);
+			 if (cmp != 0)
+				 return RUN_ENDED;
+			 if (block != null ? block.hasRid(slot, rid) : BTPageBytes.hasRid(
+					 data, slot, rid))
+				 return slot;
+		 }
+		 return RUN_GOES_ON;
+	 }
+ 
+	 /*
+	  * Remove the entry found by findInRun from the leaf.
+	  */
+	 private void deleteFromLeaf(BTSortedPage leaf, BTLeafBlock block, int slot)
+			 throws DeleteRecException, IOException {
+		 if (block == null) {
+			 leaf.deleteSortedRecord(new RID(leaf.getCurPage(), slot));
+		 } else {
+			 block.remove(slot, slot + 1);
+			 block.write(leaf.getpage());
+		 }
+	 }
+ 
+	 /*
+	  * Remove specified data entry (<key, rid>) from an index, keeping every
+	  * page other than the root at least half full.
+	  * 
+	  * The path from the root is remembered as (page, child slot) pairs, slot
+	  * -1 standing for the left-most child. The run of `key' is walked from its
+	  * left-most occurrence, advancing the path when it crosses into the next
+	  * leaf, so the parent of the leaf holding <key,rid> is always known. After
+	  * the delete an underflowing page borrows entries from a sibling under the
+	  * same parent or, if both fit in one page, is merged with it; a merge
+	  * removes an entry from the parent, which is then checked the same way.
 	  *
-	  * @param lo_key
-	  *            the key where we begin scanning. Input parameter.
-	  * @param hi_key
+	  * Pages are latched exclusively on the way down, and the latches above a
+	  * page that stays half full after the delete (see deleteSafe) are let go.
+	  * Only a pessimistic delete, which keeps every latch from the header page
+	  * on, can follow the run into the next leaf, since that moves the path; a
+	  * delete that needs to is started over pessimistic.
+	  *
+	  * Without `merge', the leaf is left as it is after the delete, as naive
+	  * delete leaves it; that is how an index that keeps counts deletes naively.
+	  */
+ 
+	 private boolean FullDelete(KeyClass key, RID rid, BTLatches latches,
+			 boolean pessimistic, boolean merge) throws LeafRedistributeException, RedistributeException,
+			 IndexFullDeleteException, KeyNotMatchException, FreePageException,
+			 PinPageException, UnpinPageException, DeleteRecException,
+			 IOException {
+ 
+		 int[] path = new int[8];
+		 int[] slots = new int[8];
+		 int depth = 0;
+ 
+		 latches.exclusive(headerPageId.pid);
+		 PageId pageno = rootId();
+		 if (pageno.pid == INVALID_PAGE)
+			 return false;
+ 
+		 latches.exclusive(pageno.pid);
+		 BTSortedPage sortPage = new BTSortedPage(pinPage(pageno), headerPage
+				 .get_keyType());
+		 if (!pessimistic && deleteSafe(sortPage, true))
+			 latches.keepLast(1);
+		 while (sortPage.getType() == NodeType.INDEX) {
+			 byte[] data = sortPage.getpage();
+			 int slot = BTPageBytes.lowerBound(data, key) - 1;
+			 int child = slot < 0 ? sortPage.getPrevPage().pid : BTPageBytes
+					 .childAt(data, slot);
+			 unpinPage(pageno);
+ 
+			 if (depth == path.length) {
+				 path = java.util.Arrays.copyOf(path, 2 * depth);
+				 slots = java.util.Arrays.copyOf(slots, 2 * depth);
+			 }
+			 path[depth] = pageno.pid;
+			 slots[depth++] = slot;
+ 
+			 pageno = new PageId(child);
+			 latches.exclusive(pageno.pid);
+			 sortPage = new BTSortedPage(pinPage(pageno), headerPage.get_keyType());
+			 if (!pessimistic && deleteSafe(sortPage, false))
+				 latches.keepLast(1);
+		 }
+ 
+		 BTLeafBlock block = compressedLeaves() ? new BTLeafBlock(headerPage
+				 .get_keyType()) : null;
+		 int slot = leafLowerBound(sortPage, key);
+		 while (true) {
+			 slot = findInRun(sortPage, block, slot, key, rid);
+			 if (slot == RUN_ENDED) {
+				 unpinPage(pageno);
+				 return false;
+			 }
+			 if (slot != RUN_GOES_ON) {
+				 deleteFromLeaf(sortPage, block, slot);
+				 if (counted())
+					 addCounts(path, slots, 0, depth, -1);
+				 if (merge)
+					 rebalance(pageno, sortPage, path, slots, depth, latches);
+				 else
+					 unpinPage(pageno, true);
+				 return true;
+			 }
+			 unpinPage(pageno);
+			 if (!latches.holds(headerPageId.pid)) {
+				 latches.releaseAll();
+				 return FullDelete(key, rid, latches, true, merge);
+			 }
+ 
+			 // the run goes on in the next leaf: step the path to it
+			 int level = depth - 1;
+			 int child = INVALID_PAGE;
+			 while (level >= 0) {
+				 PageId indexId = new PageId(path[level]);
+				 BTSortedPage indexPage = new BTSortedPage(pinPage(indexId),
+						 headerPage.get_keyType());
+				 if (slots[level] + 1 < indexPage.getSlotCnt()) {
+					 child = BTPageBytes.childAt(indexPage.getpage(),
+							 ++slots[level]);
+					 unpinPage(indexId);
+					 break;
+				 }
+				 unpinPage(indexId);
+				 level--;
+			 }
+			 if (level < 0)
+				 return false;
+ 
+			 for (level++; level < depth; level++) {
+				 PageId indexId = new PageId(child);
+				 latches.exclusive(child);
+				 BTSortedPage indexPage = new BTSortedPage(pinPage(indexId),
+						 headerPage.get_keyType());
+				 path[level] = child;
+				 slots[level] = -1;
+				 child = indexPage.getPrevPage().pid;
+				 unpinPage(indexId);
+			 }
+ 
+			 pageno = new PageId(child);
+			 latches.exclusive(child);
+			 sortPage = new BTSortedPage(pinPage(pageno), headerPage.get_keyType());
+			 slot = 0;
+		 }
+	 }
+ 
+	 /*
+	  * Fix up the pinned page `node', which has just lost an entry, and its
+	  * ancestors. path[0..depth) are the index pages above it. node is unpinned
+	  * on return.
+	  *
+	  * Every page the fix-up changes is latched in `latches': the pages above
+	  * node by FullDelete, siblings here. A left sibling is only taken if its
+	  * latch is free, as waiting for it would go against the latch order, and
+	  * leaves a scan is on are not touched; in both cases node is left
+	  * underfull.
+	  */
+	 private void rebalance(PageId pageno, BTSortedPage node, int[] path,
+			 int[] slots, int depth, BTLatches latches) throws LeafRedistributeException,
+			 RedistributeException, IndexFullDeleteException,
+			 KeyNotMatchException, FreePageException, PinPageException,
+			 UnpinPageException, IOException {
+ 
+		 while (depth > 0) {
+			 if (BTPageBytes.usedSpace(node.getpage()) >= BTPageBytes.capacity(node
+					 .getpage()) / 2) {
+				 unpinPage(pageno, true);
+				 return;
+			 }
+ 
+			 PageId parentId = new PageId(path[depth - 1]);
+			 if (!latches.holds(parentId.pid)) {
+				 // deleteSafe took node for safe; leave it as it is
+				 unpinPage(pageno, true);
+				 return;
+			 }
+			 BTSortedPage parent = new BTSortedPage(pinPage(parentId), headerPage
+					 .get_keyType());
+			 byte[] parentData = parent.getpage();
+			 int slot = slots[depth - 1];
+ 
+			 // the sibling to the right if there is one, else the one to the
+			 // left; sep is the parent slot that points at the right page
+			 int sep;
+			 PageId leftId, rightId;
+			 BTSortedPage left, right;
+			 if (slot + 1 < parent.getSlotCnt()) {
+				 sep = slot + 1;
+				 leftId = pageno;
+				 rightId = new PageId(BTPageBytes.childAt(parentData, sep));
+				 if (!latches.holds(rightId.pid))
+					 latches.exclusive(rightId.pid);
+			 } else {
+				 sep = slot;
+				 leftId = new PageId(sep == 0 ? parent.getPrevPage().pid
+						 : BTPageBytes.childAt(parentData, sep - 1));
+				 rightId = pageno;
+				 if (!latches.holds(leftId.pid) && !latches.tryExclusive(leftId.pid)) {
+					 unpinPage(parentId);
+					 unpinPage(pageno, true);
+					 return;
+				 }
+			 }
+			 if (node.getType() == NodeType.LEAF
+					 && (BTLatches.scanned(leftId.pid) || BTLatches.scanned(rightId.pid))) {
+				 unpinPage(parentId);
+				 unpinPage(pageno, true);
+				 return;
+			 }
+			 if (sep == slot + 1) {
+				 left = node;
+				 right = new BTSortedPage(pinPage(rightId), headerPage.get_keyType());
+			 } else {
+				 left = new BTSortedPage(pinPage(leftId), headerPage.get_keyType());
+				 right = node;
+			 }
+ 
+			 boolean merged = node.getType() == NodeType.LEAF ? mergeLeaves(
+					 parentData, sep, left, right, latches) : mergeIndexPages(
+					 parentData, sep, left, right);
+			 BTLatches.shifted();
+			 if (counted()) {
+				 BTPageBytes.setChildCount(parentData, sep - 1, subtreeCount(left));
+				 if (!merged)
+					 BTPageBytes.setChildCount(parentData, sep, subtreeCount(right));
+			 }
+			 if (!merged) {
+				 // the separator, new or not, is the high key of left
+				 BTPageBytes.setHighKey(left.getpage(), BTPageBytes.keyAt(parentData,
+						 sep, headerPage.get_keyType()));
+				 unpinPage(leftId, true);
+				 unpinPage(rightId, true);
+				 unpinPage(parentId, true);
+				 return;
+			 }
+ 
+			 BTPageBytes.copyHighKey(right.getpage(), left.getpage());
+			 if (node.getType() == NodeType.INDEX)
+				 left.setNextPage(right.getNextPage());
+			 unpinPage(leftId, true);
+			 unpinPage(rightId);
+			 BTLatches.retire(rightId.pid, headerPageId.pid);
+			 indexCache.remove(rightId.pid);
+			 try {
+				 parent.deleteSortedRecord(new RID(parentId, sep));
+			 } catch (DeleteRecException e) {
+				 throw new IndexFullDeleteException(e, "");
+			 }
+ 
+			 pageno = parentId;
+			 node = parent;
+			 depth--;
+		 }
+ 
+		 // node is the root: collapse it if it ran empty
+		 if (node.getSlotCnt() > 0) {
+			 unpinPage(pageno, true);
+		 } else if (node.getType() == NodeType.INDEX) {
+			 PageId child = node.getPrevPage();
+			 BTLatches.shifted();
+			 unpinPage(pageno);
+			 BTLatches.retire(pageno.pid, headerPageId.pid);
+			 indexCache.remove(pageno.pid);
+			 updateHeader(child);
+		 } else if (BTLatches.scanned(pageno.pid)) {
+			 // an empty root leaf does no harm; it goes when the scan has left
+			 unpinPage(pageno, true);
+		 } else {
+			 BTLatches.shifted();
+			 unpinPage(pageno);
+			 BTLatches.retire(pageno.pid, headerPageId.pid);
+			 updateHeader(new PageId(INVALID_PAGE));
+		 }
+	 }
+ 
+	 /*
+	  * Merge the leaf `right' into `left' if their entries fit in one page and
+	  * return true; the caller frees `right' and drops slot sep of the parent.
+	  * Otherwise move entries from the fuller one to the other until they are
+	  * as even as they get and give the parent a new separator for them.
+	  */
+	 private boolean mergeLeaves(byte[] parentData, int sep, BTSortedPage left,
+			 BTSortedPage right, BTLatches latches)
+			 throws LeafRedistributeException {
+		 if (compressedLeaves())
+			 return mergeCompressedLeaves(parentData, sep, left, right, latches);
+		 try {
+			 byte[] leftData = left.getpage();
+			 byte[] rightData = right.getpage();
+			 int leftUsed = BTPageBytes.usedSpace(leftData);
+			 int rightUsed = BTPageBytes.usedSpace(rightData);
+ 
+			 if (leftUsed + rightUsed <= BTPageBytes.capacity(leftData)) {
+				 BTPageBytes.copySlots(rightData, 0, leftData);
+				 unlinkRight(left, right, latches);
+				 return true;
+			 }
+ 
+			 int keyType = headerPage.get_keyType();
+			 int oldKeyLength = BTPageBytes.slotLength(parentData, sep)
+					 - indexDataLength();
+			 if (leftUsed < rightUsed) {
+				 // borrow the first entries of right
+				 int count = 0;
+				 int space = BTPageBytes.entrySpace(rightData, 0);
+				 while (leftUsed + space < rightUsed) {
+					 leftUsed += space;
+					 rightUsed -= space;
+					 space = BTPageBytes.entrySpace(rightData, ++count);
+				 }
+				 if (count == 0)
+					 return false;
+				 KeyClass newKey = BTPageBytes.separator(BTPageBytes.keyAt(
+						 rightData, count - 1, keyType), BTPageBytes.keyAt(
+						 rightData, count, keyType));
+				 if (BTPageBytes.keyLength(newKey) - oldKeyLength > BTPageBytes
+						 .freeSpace(parentData))
+					 return false;
+				 BTPageBytes.copySlots(rightData, 0, count, leftData);
+				 BTPageBytes.removeSlots(rightData, 0, count);
+				 BTPageBytes.replaceKey(parentData, sep, newKey);
+			 } else {
+				 // hand the last entries of left over to right
+				 int from = left.getSlotCnt();
+				 int space = BTPageBytes.entrySpace(leftData, from - 1);
+				 while (rightUsed + space < leftUsed) {
+					 leftUsed -= space;
+					 rightUsed += space;
+					 space = BTPageBytes.entrySpace(leftData, --from - 1);
+				 }
+				 if (from == left.getSlotCnt())
+					 return false;
+				 KeyClass newKey = BTPageBytes.separator(BTPageBytes.keyAt(
+						 leftData, from - 1, keyType), BTPageBytes.keyAt(leftData,
+						 from, keyType));
+				 if (BTPageBytes.keyLength(newKey) - oldKeyLength > BTPageBytes
+						 .freeSpace(parentData))
+					 return false;
+				 BTPageBytes.prependSlots(leftData, from, rightData);
+				 BTPageBytes.truncate(leftData, from);
+				 BTPageBytes.replaceKey(parentData, sep, newKey);
+			 }
+			 return false;
+		 } catch (Exception e) {
+			 throw new LeafRedistributeException(e, "");
+		 }
+	 }
+ 
+	 /*
+	  * mergeLeaves for compressed leaves. Both are decoded into one block,
+	  * which is written back to `left' if it fits, or else split by bytes
+	  * between the two.
+	  */
+	 private boolean mergeCompressedLeaves(byte[] parentData, int sep,
+			 BTSortedPage left, BTSortedPage right, BTLatches latches)
+			 throws LeafRedistributeException {
+		 try {
+			 BTLeafBlock block = new BTLeafBlock(headerPage.get_keyType());
+			 BTLeafBlock rightBlock = new BTLeafBlock(headerPage.get_keyType());
+			 block.read(left.getpage());
+			 int leftCount = block.count;
+			 rightBlock.read(right.getpage());
+			 block.append(rightBlock, 0, rightBlock.count);
+ 
+			 int capacity = BTPageBytes.capacity(left.getpage());
+			 if (block.size() <= capacity) {
+				 block.write(left.getpage());
+				 unlinkRight(left, right, latches);
+				 return true;
+			 }
+ 
+			 int splitAt = balancedSplit(block, BTPageBytes.capacity(left
+					 .getpage()));
+			 if (splitAt == leftCount || block.size(0, splitAt) > capacity
+					 || block.size(splitAt, block.count) > capacity)
+				 return false;
+			 KeyClass newKey = BTPageBytes.separator(block.keyAt(splitAt - 1),
+					 block.keyAt(splitAt));
+			 if (!fitsSeparator(parentData, sep, newKey))
+				 return false;
+			 block.write(left.getpage(), 0, splitAt);
+			 block.write(right.getpage(), splitAt, block.count);
+			 BTPageBytes.replaceKey(parentData, sep, newKey);
+			 return false;
+		 } catch (Exception e) {
+			 throw new LeafRedistributeException(e, "");
+		 }
+	 }
+ 
+	 /*
+	  * Take the leaf `right', which is being merged into `left', out of the
+	  * leaf chain. The leaf after it is latched for its prev link.
+	  */
+	 private void unlinkRight(BTSortedPage left, BTSortedPage right,
+			 BTLatches latches) throws IOException, PinPageException,
+			 UnpinPageException {
+		 PageId nextId = right.getNextPage();
+		 left.setNextPage(nextId);
+		 if (nextId.pid != INVALID_PAGE) {
+			 if (!latches.holds(nextId.pid))
+				 latches.exclusive(nextId.pid);
+			 BTSortedPage next = new BTSortedPage(pinPage(nextId), headerPage
+					 .get_keyType());
+			 next.setPrevPage(left.getCurPage());
+			 unpinPage(nextId, true);
+		 }
+	 }
+ 
+	 /*
+	  * Same as mergeLeaves for two index pages. The separator in slot sep of
+	  * the parent comes down into the merged page as the entry for the
+	  * left-most child of `right'; redistribution rotates entries through the
+	  * parent one at a time. Counts go with the children they count.
+	  */
+	 private boolean mergeIndexPages(byte[] parentData, int sep,
+			 BTSortedPage left, BTSortedPage right) throws RedistributeException {
+		 try {
+			 byte[] leftData = left.getpage();
+			 byte[] rightData = right.getpage();
+			 int keyType = headerPage.get_keyType();
+			 KeyClass sepKey = BTPageBytes.keyAt(parentData, sep, keyType);
+			 int leftUsed = BTPageBytes.usedSpace(leftData);
+			 int rightUsed = BTPageBytes.usedSpace(rightData);
+ 
+			 if (leftUsed + rightUsed + BTPageBytes.entrySpace(parentData, sep)
+					 <= BTPageBytes.capacity(leftData)) {
+				 putIndexEntry(leftData, left.getSlotCnt(), sepKey, firstCount(
+						 rightData), right.getPrevPage().pid);
+				 BTPageBytes.copySlots(rightData, 0, leftData);
+				 return true;
+			 }
+ 
+			 // only ever move towards the page that is short, so this stops
+			 // even when separators differ in length
+			 boolean fromRight = leftUsed < rightUsed;
+			 while (true) {
+				 int space = BTPageBytes.entrySpace(parentData, sep);
+				 KeyClass newKey;
+				 if (fromRight && leftUsed + space < rightUsed) {
+					 newKey = BTPageBytes.keyAt(rightData, 0, keyType);
+					 if (!fitsSeparator(parentData, sep, newKey))
+						 break;
+					 putIndexEntry(leftData, left.getSlotCnt(), sepKey, firstCount(
+							 rightData), right.getPrevPage().pid);
+					 right.setPrevPage(new PageId(BTPageBytes.childAt(rightData, 0)));
+					 if (counted())
+						 BTPageBytes.setChildCount(rightData, -1, BTPageBytes
+								 .childCount(rightData, 0));
+					 BTPageBytes.removeSlots(rightData, 0, 1);
+				 } else if (!fromRight && rightUsed + space < leftUsed) {
+					 int last = left.getSlotCnt() - 1;
+					 newKey = BTPageBytes.keyAt(leftData, last, keyType);
+					 if (!fitsSeparator(parentData, sep, newKey))
+						 break;
+					 putIndexEntry(rightData, 0, sepKey, firstCount(rightData), right
+							 .getPrevPage().pid);
+					 right.setPrevPage(new PageId(BTPageBytes.childAt(leftData,
+							 last)));
+					 if (counted())
+						 BTPageBytes.setChildCount(rightData, -1, BTPageBytes
+								 .childCount(leftData, last));
+					 BTPageBytes.truncate(leftData, last);
+				 } else {
+					 break;
+				 }
+				 BTPageBytes.replaceKey(parentData, sep, newKey);
+				 sepKey = newKey;
+				 leftUsed = BTPageBytes.usedSpace(leftData);
+				 rightUsed = BTPageBytes.usedSpace(rightData);
+			 }
+			 return false;
+		 } catch (Exception e) {
+			 throw new RedistributeException(e, "");
+		 }
+	 }
+ 
+	 private boolean fitsSeparator(byte[] parentData, int sep, KeyClass key)
+			 throws KeyNotMatchException {
+		 return BTPageBytes.keyLength(key) + indexDataLength()
+				 - BTPageBytes.slotLength(parentData, sep) <= BTPageBytes
+				 .freeSpace(parentData);
+	 }
+ 
+	 /*
+	  * Count of the left-most child of an index page, 0 in an index that does
+	  * not keep counts.
+	  */
+	 private int firstCount(byte[] data) {
+		 return counted() ? BTPageBytes.childCount(data, -1) : 0;
+	 }
+ 
+	 /**
+	  * create a scan with given keys Cases: (1) lo_key = null, hi_key = null
+	  * scan the whole index (2) lo_key = null, hi_key!= null range scan from min
+	  * to the hi_key (3) lo_key!= null, hi_key = null range scan from the lo_key
+	  * to max (4) lo_key!= null, hi_key!= null, lo_key = hi_key exact match (
+	  * might not unique) (5) lo_key!= null, hi_key!= null, lo_key < hi_key range
+	  * scan from lo_key to hi_key
+	  *
+	  * @param lo_key
+	  *            the key where we begin scanning. Input parameter.
+	  * @param hi_key
 	  *            the key where we stop scanning. Input parameter.
 	  * @exception IOException
 	  *                error from the lower layer
@@ -907,8 +2695,39 @@
 			 ConstructPageException, PinPageException, UnpinPageException
  
 	 {
-		 BTFileScan scan = new BTFileScan();
-		 if (headerPage.get_rootId().pid == INVALID_PAGE) {
+		 return new_scan(lo_key, hi_key, 0);
+	 }
+ 
+	 /**
+	  * create a scan as new_scan(lo_key, hi_key) does, which reads ahead: while
+	  * it is on a leaf, the next `readAhead' leaves are read into the buffer
+	  * pool on a background thread (see BTReadAhead).
+	  *
+	  * @param lo_key
+	  *            the key where we begin scanning. Input parameter.
+	  * @param hi_key
+	  *            the key where we stop scanning. Input parameter.
+	  * @param readAhead
+	  *            how many leaves to read ahead, 0 for none. Input parameter.
+	  * @exception IOException
+	  *                error from the lower layer
+	  * @exception KeyNotMatchException
+	  *                key is not integer key nor string key
+	  * @exception IteratorException
+	  *                iterator error
+	  * @exception ConstructPageException
+	  *                error in BT page constructor
+	  * @exception PinPageException
+	  *                error when pin a page
+	  * @exception UnpinPageException
+	  *                error when unpin a page
+	  */
+	 public BTFileScan new_scan(KeyClass lo_key, KeyClass hi_key, int readAhead)
+			 throws IOException, KeyNotMatchException, IteratorException,
+			 ConstructPageException, PinPageException, UnpinPageException {
+		 BTLeafScan scan = new BTLeafScan(headerPage.get_keyType(),
+				 compressedLeaves());
+		 if (rootId().pid == INVALID_PAGE) {
 			 scan.leafPage = null;
 			 return scan;
 		 }
@@ -921,48 +2740,990 @@
 		 scan.keyType = headerPage.get_keyType();
 		 scan.maxKeysize = headerPage.get_maxKeySize();
 		 scan.bfile = this;
+		 if (readAhead > 0)
+			 scan.readAhead = new BTReadAhead(readAhead);
  
 		 // this sets up scan at the starting position, ready for iteration
-		 scan.leafPage = findRunStart(lo_key, scan.curRid);
+		 long started = metrics.begin();
+		 BTLatches latches = new BTLatches();
+		 try {
+			 scan.leafPage = findRunStart(lo_key, scan.curRid, latches, false);
+			 scan.start(scan.curRid.slotNo);
+		 } finally {
+			 latches.releaseAll();
+			 metrics.end(BTMetrics.SCAN, started);
+		 }
 		 return scan;
 	 }
  
-	 void trace_children(PageId id) throws IOException, IteratorException,
+	 /**
+	  * create a scan over the int keys lo_key..hi_key, both included, of an
+	  * integer index. Keys and rids come back as primitives, see BTIntScan.
+	  *
+	  * @param lo_key
+	  *            the key where we begin scanning. Input parameter.
+	  * @param hi_key
+	  *            the key where we stop scanning. Input parameter.
+	  * @exception KeyNotMatchException
+	  *                the index does not have integer keys
+	  * @exception IOException
+	  *                error from the lower layer
+	  * @exception ConstructPageException
+	  *                error in BT page constructor
+	  * @exception PinPageException
+	  *                error when pin a page
+	  * @exception UnpinPageException
+	  *                error when unpin a page
+	  */
+	 public BTIntScan new_scan(int lo_key, int hi_key)
+			 throws KeyNotMatchException, IOException, ConstructPageException,
+			 PinPageException, UnpinPageException {
+		 return new_scan(lo_key, hi_key, 0);
+	 }
+ 
+	 /**
+	  * create a scan as new_scan(lo_key, hi_key) does that reads `readAhead'
+	  * leaves ahead, as new_scan(KeyClass, KeyClass, int) does.
+	  *
+	  * @param lo_key
+	  *            the key where we begin scanning. Input parameter.
+	  * @param hi_key
+	  *            the key where we stop scanning. Input parameter.
+	  * @param readAhead
+	  *            how many leaves to read ahead, 0 for none. Input parameter.
+	  * @exception KeyNotMatchException
+	  *                the index does not have integer keys
+	  * @exception IOException
+	  *                error from the lower layer
+	  * @exception ConstructPageException
+	  *                error in BT page constructor
+	  * @exception PinPageException
+	  *                error when pin a page
+	  * @exception UnpinPageException
+	  *                error when unpin a page
+	  */
+	 public BTIntScan new_scan(int lo_key, int hi_key, int readAhead)
+			 throws KeyNotMatchException, IOException, ConstructPageException,
+			 PinPageException, UnpinPageException {
+		 if (headerPage.get_keyType() != AttrType.attrInteger)
+			 throw new KeyNotMatchException(null, "index does not have integer keys");
+ 
+		 BTIntScan scan = new BTIntScan();
+		 RID startrid = new RID();
+		 scan.hiKey = hi_key;
+		 scan.compressed = compressedLeaves();
+		 if (readAhead > 0)
+			 scan.readAhead = new BTReadAhead(readAhead);
+		 long started = metrics.begin();
+		 BTLatches latches = new BTLatches();
+		 try {
+			 scan.leafPage = findRunStart(lo_key, startrid, latches, false);
+			 scan.start(startrid.slotNo);
+		 } finally {
+			 latches.releaseAll();
+			 metrics.end(BTMetrics.SCAN, started);
+		 }
+		 return scan;
+	 }
+ 
+	 /**
+	  * create a scan over the same range as new_scan(lo_key, hi_key) that
+	  * returns the entries in descending order: it starts at the last entry not
+	  * greater than hi_key and walks back through the leaves' prev links until
+	  * it gets below lo_key. Either key may be null for an open end. Equal keys
+	  * come back in the reverse of the order new_scan returns them in.
+	  *
+	  * @param lo_key
+	  *            the key where we stop scanning. Input parameter.
+	  * @param hi_key
+	  *            the key where we begin scanning. Input parameter.
+	  * @exception IOException
+	  *                error from the lower layer
+	  * @exception KeyNotMatchException
+	  *                key is not integer key nor string key
+	  * @exception ConstructPageException
+	  *                error in BT page constructor
+	  * @exception PinPageException
+	  *                error when pin a page
+	  * @exception UnpinPageException
+	  *                error when unpin a page
+	  */
+	 public BTFileScan new_reverse_scan(KeyClass lo_key, KeyClass hi_key)
+			 throws IOException, KeyNotMatchException, ConstructPageException,
+			 PinPageException, UnpinPageException {
+		 BTReverseScan scan = new BTReverseScan(headerPage.get_keyType(),
+				 compressedLeaves());
+		 scan.treeFilename = dbname;
+		 scan.endkey = lo_key;
+		 scan.curRid = new RID();
+		 scan.keyType = headerPage.get_keyType();
+		 scan.maxKeysize = headerPage.get_maxKeySize();
+		 scan.bfile = this;
+ 
+		 long started = metrics.begin();
+		 BTLatches latches = new BTLatches();
+		 try {
+			 scan.leafPage = findRunEnd(hi_key, latches);
+			 scan.start(hi_key);
+		 } finally {
+			 latches.releaseAll();
+			 metrics.end(BTMetrics.SCAN, started);
+		 }
+		 return scan;
+	 }
+ 
+	 /**
+	  * Number of entries with keys in lo_key..hi_key, both included. Either key
+	  * may be null for an open end. The index has to keep counts (see
+	  * BTreeFile(String, int, int, int, int, boolean)); the entries are not
+	  * visited, the counts of the subtrees left of lo_key and hi_key are added
+	  * up on two descents instead.
+	  *
+	  * @param lo_key
+	  *            the low end of the range. Input parameter.
+	  * @param hi_key
+	  *            the high end of the range. Input parameter.
+	  * @exception IndexSearchException
+	  *                the index does not keep counts
+	  * @exception KeyNotMatchException
+	  *                key is not of the key type of the index
+	  * @exception IOException
+	  *                error from the lower layer
+	  * @exception PinPageException
+	  *                error when pin a page
+	  * @exception UnpinPageException
+	  *                error when unpin a page
+	  */
+	 public int count(KeyClass lo_key, KeyClass hi_key)
+			 throws IndexSearchException, KeyNotMatchException, IOException,
+			 PinPageException, UnpinPageException {
+		 checkCounted();
+		 BTLatches latches = new BTLatches();
+		 try {
+			 latches.shared(headerPageId.pid);
+			 return Math.max(0, entriesBefore(hi_key, true)
+					 - entriesBefore(lo_key, false));
+		 } finally {
+			 latches.releaseAll();
+		 }
+	 }
+ 
+	 /**
+	  * Number of entries whose key is less than key, which is the position
+	  * new_scan(key, ...) starts at. The index has to keep counts.
+	  *
+	  * @param key
+	  *            the key. Input parameter.
+	  * @exception IndexSearchException
+	  *                the index does not keep counts
+	  * @exception KeyNotMatchException
+	  *                key is not of the key type of the index
+	  * @exception IOException
+	  *                error from the lower layer
+	  * @exception PinPageException
+	  *                error when pin a page
+	  * @exception UnpinPageException
+	  *                error when unpin a page
+	  */
+	 public int rank(KeyClass key) throws IndexSearchException,
+			 KeyNotMatchException, IOException, PinPageException,
+			 UnpinPageException {
+		 checkCounted();
+		 BTLatches latches = new BTLatches();
+		 try {
+			 latches.shared(headerPageId.pid);
+			 return entriesBefore(key, false);
+		 } finally {
+			 latches.releaseAll();
+		 }
+	 }
+ 
+	 /**
+	  * The entry at the given position of the index, in the order new_scan
+	  * returns the entries in and counting from 0, or null if the index does
+	  * not have that many entries. The index has to keep counts; one descent
+	  * finds the entry.
+	  *
+	  * @param position
+	  *            the position. Input parameter.
+	  * @exception IndexSearchException
+	  *                the index does not keep counts
+	  * @exception IOException
+	  *                error from the lower layer
+	  * @exception ConstructPageException
+	  *                error in BT page constructor
+	  * @exception PinPageException
+	  *                error when pin a page
+	  * @exception UnpinPageException
+	  *                error when unpin a page
+	  */
+	 public KeyDataEntry select(int position) throws IndexSearchException,
+			 IOException, ConstructPageException, PinPageException,
+			 UnpinPageException {
+		 checkCounted();
+		 BTLatches latches = new BTLatches();
+		 try {
+			 latches.shared(headerPageId.pid);
+			 RID startrid = new RID();
+			 BTLeafPage leaf = leafAt(position, startrid);
+			 if (leaf == null)
+				 return null;
+			 BTLeafBlock block = new BTLeafBlock(headerPage.get_keyType());
+			 BTLeafScan.read(leaf, block, compressedLeaves());
+			 unpinPage(leaf.getCurPage());
+			 int slot = startrid.slotNo;
+			 return new KeyDataEntry(block.keyAt(slot), new RID(new PageId(
+					 block.ridPages[slot]), block.ridSlots[slot]));
+		 } finally {
+			 latches.releaseAll();
+		 }
+	 }
+ 
+	 /**
+	  * create a scan over the range new_scan(lo_key, hi_key) covers that skips
+	  * its first `offset' entries, for OFFSET / LIMIT paging. The index has to
+	  * keep counts; the entries skipped are not visited, the scan starts at
+	  * position rank(lo_key) + offset (see select).
+	  *
+	  * @param lo_key
+	  *            the key where the range begins. Input parameter.
+	  * @param hi_key
+	  *            the key where we stop scanning. Input parameter.
+	  * @param offset
+	  *            how many entries of the range to skip, not negative. Input
+	  *            parameter.
+	  * @exception IndexSearchException
+	  *                the index does not keep counts
+	  * @exception KeyNotMatchException
+	  *                key is not of the key type of the index
+	  * @exception IOException
+	  *                error from the lower layer
+	  * @exception ConstructPageException
+	  *                error in BT page constructor
+	  * @exception PinPageException
+	  *                error when pin a page
+	  * @exception UnpinPageException
+	  *                error when unpin a page
+	  */
+	 public BTFileScan new_offset_scan(KeyClass lo_key, KeyClass hi_key,
+			 int offset) throws IndexSearchException, KeyNotMatchException,
+			 IOException, ConstructPageException, PinPageException,
+			 UnpinPageException {
+		 checkCounted();
+		 BTLeafScan scan = new BTLeafScan(headerPage.get_keyType(),
+				 compressedLeaves());
+		 scan.treeFilename = dbname;
+		 scan.endkey = hi_key;
+		 scan.didfirst = false;
+		 scan.deletedcurrent = false;
+		 scan.curRid = new RID();
+		 scan.keyType = headerPage.get_keyType();
+		 scan.maxKeysize = headerPage.get_maxKeySize();
+		 scan.bfile = this;
+ 
+		 // the header latch keeps writers out, so the leaf needs none of its own
+		 long started = metrics.begin();
+		 BTLatches latches = new BTLatches();
+		 try {
+			 latches.shared(headerPageId.pid);
+			 scan.leafPage = leafAt(entriesBefore(lo_key, false) + offset,
+					 scan.curRid);
+			 scan.start(scan.curRid.slotNo);
+		 } finally {
+			 latches.releaseAll();
+			 metrics.end(BTMetrics.SCAN, started);
+		 }
+		 return scan;
+	 }
+ 
+	 private void checkCounted() throws IndexSearchException {
+		 if (!counted())
+			 throw new IndexSearchException(null, "index does not keep counts");
+	 }
+ 
+	 /*
+	  * Number of entries whose key is less than key, or not greater than it if
+	  * `inclusive'. A null key stands for the start of the index, or for its end
+	  * if `inclusive'.
+	  *
+	  * The caller holds the header page latched. Writers of an index that keeps
+	  * counts hold it exclusively until they are done, so no page needs a latch
+	  * of its own. The keys under a child are between the separator of its
+	  * entry and the next one, both included, so all entries under the children
+	  * left of the one key leads to are before key and none right of it are.
+	  */
+	 private int entriesBefore(KeyClass key, boolean inclusive)
+			 throws KeyNotMatchException, IOException, PinPageException,
+			 UnpinPageException {
+		 if (key == null && !inclusive)
+			 return 0;
+		 int count = 0;
+		 PageId pageno = rootId();
+		 while (pageno.pid != INVALID_PAGE) {
+			 BTSortedPage page = new BTSortedPage(pinPage(pageno), headerPage
+					 .get_keyType());
+			 byte[] data = page.getpage();
+			 if (page.getType() == NodeType.LEAF) {
+				 count += key == null ? leafCount(page) : inclusive ? leafUpperBound(
+						 page, key) : leafLowerBound(page, key);
+				 unpinPage(pageno);
+				 break;
+			 }
+			 int pos = key == null ? page.getSlotCnt() : inclusive ? BTPageBytes
+					 .upperBound(data, key) : BTPageBytes.lowerBound(data, key);
+			 for (int slot = -1; slot < pos - 1; slot++)
+				 count += BTPageBytes.childCount(data, slot);
+			 PageId child = new PageId(pos == 0 ? page.getPrevPage().pid
+					 : BTPageBytes.childAt(data, pos - 1));
+			 unpinPage(pageno);
+			 pageno = child;
+		 }
+		 return count;
+	 }
+ 
+	 /*
+	  * The leaf holding the entry at the given position, pinned, with
+	  * startrid.slotNo set to the entry, or null if the index does not have
+	  * that many entries. The caller holds the header page latched, as for
+	  * entriesBefore.
+	  */
+	 private BTLeafPage leafAt(int position, RID startrid) throws IOException,
 			 ConstructPageException, PinPageException, UnpinPageException {
+		 if (position < 0)
+			 return null;
+		 PageId pageno = rootId();
+		 while (pageno.pid != INVALID_PAGE) {
+			 BTSortedPage page = new BTSortedPage(pinPage(pageno), headerPage
+					 .get_keyType());
+			 byte[] data = page.getpage();
+			 if (page.getType() == NodeType.LEAF) {
+				 if (position >= leafCount(page))
+					 break;
+				 startrid.pageNo = pageno;
+				 startrid.slotNo = position;
+				 return new BTLeafPage(page, headerPage.get_keyType());
+			 }
+			 int child = INVALID_PAGE;
+			 for (int slot = -1; slot < page.getSlotCnt(); slot++) {
+				 int count = BTPageBytes.childCount(data, slot);
+				 if (position < count) {
+					 child = slot < 0 ? page.getPrevPage().pid : BTPageBytes
+							 .childAt(data, slot);
+					 break;
+				 }
+				 position -= count;
+			 }
+			 unpinPage(pageno);
+			 pageno = new PageId(child);
+		 }
+		 if (pageno.pid != INVALID_PAGE)
+			 unpinPage(pageno);
+		 return null;
+	 }
+ 
+	 /**
+	  * Scan lo_key..hi_key, both included, in parts on the common ForkJoinPool
+	  * and hand every entry to action. The range is cut at separator keys of
+	  * the root, and of the index level below it if the root has too few, so
+	  * that the parts span about as many subtrees each. Every part is a scan of
+	  * its own, from its cut key up to the next one. action is called from
+	  * several threads at once: in key order within a part, in no order across
+	  * parts. Either key may be null for an open end.
+	  *
+	  * @param lo_key
+	  *            the key where we begin scanning. Input parameter.
+	  * @param hi_key
+	  *            the key where we stop scanning. Input parameter.
+	  * @param parts
+	  *            how many parts to cut the range into, at most. Input
+	  *            parameter.
+	  * @param action
+	  *            called with each entry. Input parameter.
+	  * @exception IOException
+	  *                error from the lower layer
+	  * @exception KeyNotMatchException
+	  *                key is not integer key nor string key
+	  * @exception PinPageException
+	  *                error when pin a page
+	  * @exception UnpinPageException
+	  *                error when unpin a page
+	  * @exception ScanIteratorException
+	  *                error in the scan of a part, or thrown by action
+	  */
+	 public void parallelScan(KeyClass lo_key, KeyClass hi_key, int parts,
+			 java.util.function.Consumer<KeyDataEntry> action) throws IOException,
+			 KeyNotMatchException, PinPageException, UnpinPageException,
+			 ScanIteratorException {
+		 java.util.List<KeyClass> cuts = cutKeys(lo_key, hi_key, parts);
+		 ScanPart[] tasks = new ScanPart[cuts.size() + 1];
+		 for (int i = 0; i < tasks.length; i++)
+			 tasks[i] = new ScanPart(i == 0 ? lo_key : cuts.get(i - 1),
+					 i == cuts.size() ? null : cuts.get(i), hi_key, action);
+		 try {
+			 java.util.concurrent.ForkJoinPool.commonPool().invoke(
+					 new java.util.concurrent.RecursiveAction() {
+						 protected void compute() {
+							 invokeAll(tasks);
+						 }
+					 });
+		 } catch (RuntimeException e) {
+			 Throwable cause = e instanceof java.util.concurrent.CompletionException ? e
+					 .getCause() : e;
+			 throw new ScanIteratorException(cause instanceof Exception ? (Exception) cause
+					 : e, "parallel scan");
+		 }
+	 }
  
-		 if (trace != null) {
+	 /*
+	  * One part of parallelScan: the entries from `from' up to, but not
+	  * including, `to'; up to hi_key for the last part, whose `to' is null.
+	  */
+	 private final class ScanPart extends java.util.concurrent.RecursiveAction {
  
-			 BTSortedPage sortedPage;
-			 RID metaRid = new RID();
-			 PageId childPageId;
-			 KeyClass key;
-			 KeyDataEntry entry;
-			 sortedPage = new BTSortedPage(pinPage(id), headerPage.get_keyType());
+		 private static final long serialVersionUID = 1L;
  
-			 // Now print all the child nodes of the page.
-			 if (sortedPage.getType() == NodeType.INDEX) {
-				 BTIndexPage indexPage = new BTIndexPage(sortedPage,
-						 headerPage.get_keyType());
-				 trace.writeBytes("INDEX CHILDREN " + id + " nodes" + lineSep);
-				 trace.writeBytes(" " + indexPage.getPrevPage());
-				 for (entry = indexPage.getFirst(metaRid); entry != null; entry = indexPage
-						 .getNext(metaRid)) {
-					 trace.writeBytes("   " + ((IndexData) entry.data).getData());
+		 private final KeyClass from;
+		 private final KeyClass to;
+		 private final KeyClass hi_key;
+		 private final java.util.function.Consumer<KeyDataEntry> action;
+ 
+		 ScanPart(KeyClass from, KeyClass to, KeyClass hi_key,
+				 java.util.function.Consumer<KeyDataEntry> action) {
+			 this.from = from;
+			 this.to = to;
+			 this.hi_key = hi_key;
+			 this.action = action;
+		 }
+ 
+		 protected void compute() {
+			 try {
+				 BTFileScan scan = new_scan(from, to == null ? hi_key : null);
+				 try {
+					 KeyDataEntry entry;
+					 while ((entry = scan.get_next()) != null) {
+						 if (to != null && BT.keyCompare(entry.key, to) >= 0)
+							 break;
+						 action.accept(entry);
+					 }
+				 } finally {
+					 scan.DestroyBTreeFileScan();
 				 }
-			 } else if (sortedPage.getType() == NodeType.LEAF) {
-				 BTLeafPage leafPage = new BTLeafPage(sortedPage,
-						 headerPage.get_keyType());
-				 trace.writeBytes("LEAF CHILDREN " + id + " nodes" + lineSep);
-				 for (entry = leafPage.getFirst(metaRid); entry != null; entry = leafPage
-						 .getNext(metaRid)) {
-					 trace.writeBytes("   " + entry.key + " " + entry.data);
+			 } catch (RuntimeException e) {
+				 throw e;
+			 } catch (Exception e) {
+				 throw new java.util.concurrent.CompletionException(e);
+			 }
+		 }
+	 }
+ 
+	 /*
+	  * Keys that cut lo_key..hi_key into at most `parts' parts spanning about as
+	  * many subtrees each, ascending, greater than lo_key and not greater than
+	  * hi_key. They are picked from the separators of the root in the range,
+	  * with those of its children in the range if the root has fewer than
+	  * parts - 1. Pages are read one at a time under a shared latch; a change
+	  * to the tree meanwhile only makes the cuts less even.
+	  */
+	 private java.util.List<KeyClass> cutKeys(KeyClass lo_key, KeyClass hi_key,
+			 int parts) throws IOException, KeyNotMatchException, PinPageException,
+			 UnpinPageException {
+		 java.util.ArrayList<KeyClass> keys = new java.util.ArrayList<KeyClass>();
+		 if (parts < 2)
+			 return keys;
+		 BTLatches latches = new BTLatches();
+		 try {
+			 BTSortedPage root = latchRoot(latches);
+			 if (root == null)
+				 return keys;
+			 long shifts = BTLatches.shifts();
+			 java.util.ArrayList<KeyClass> rootKeys = new java.util.ArrayList<KeyClass>();
+			 java.util.ArrayList<Integer> children = new java.util.ArrayList<Integer>();
+			 if (root.getType() == NodeType.INDEX)
+				 separators(root.getpage(), lo_key, hi_key, rootKeys, children);
+			 int rootId = root.getCurPage().pid;
+			 unpinPage(new PageId(rootId));
+			 latches.release(rootId);
+ 
+			 if (rootKeys.size() + 1 >= parts) {
+				 keys = rootKeys;
+			 } else {
+				 // child i comes before rootKeys[i]
+				 java.util.ArrayList<Integer> ignored = new java.util.ArrayList<Integer>();
+				 for (int i = 0; i < children.size(); i++) {
+					 PageId childId = new PageId(children.get(i));
+					 BTSortedPage child = latchPage(childId, shifts, latches, false);
+					 if (child != null) {
+						 if (child.getType() == NodeType.INDEX)
+							 separators(child.getpage(), lo_key, hi_key, keys, ignored);
+						 unpinPage(childId);
+						 latches.release(childId.pid);
+					 }
+					 if (i < rootKeys.size())
+						 keys.add(rootKeys.get(i));
+				 }
+			 }
+		 } finally {
+			 latches.releaseAll();
+		 }
+ 
+		 // drop keys out of order (the tree changed) and those not past lo_key
+		 java.util.ArrayList<KeyClass> sorted = new java.util.ArrayList<KeyClass>();
+		 KeyClass last = lo_key;
+		 for (KeyClass key : keys) {
+			 if (last == null || BT.keyCompare(key, last) > 0) {
+				 sorted.add(key);
+				 last = key;
+			 }
+		 }
+ 
+		 java.util.ArrayList<KeyClass> cuts = new java.util.ArrayList<KeyClass>();
+		 if (sorted.size() < parts) {
+			 cuts.addAll(sorted);
+		 } else {
+			 for (int i = 1; i < parts; i++)
+				 cuts.add(sorted.get((int) ((long) i * sorted.size() / parts)));
+		 }
+		 return cuts;
+	 }
+ 
+	 /*
+	  * Append the separators of index page data that lie in lo_key..hi_key to
+	  * keys, and the children between and around them to children.
+	  */
+	 private void separators(byte[] data, KeyClass lo_key, KeyClass hi_key,
+			 java.util.List<KeyClass> keys, java.util.List<Integer> children)
+			 throws IOException, KeyNotMatchException {
+		 int slot = lo_key == null ? 0 : BTPageBytes.lowerBound(data, lo_key);
+		 children.add(slot == 0 ? BTPageBytes.getInt(data, HFPage.PREV_PAGE)
+				 : BTPageBytes.childAt(data, slot - 1));
+		 for (int count = BTPageBytes.slotCount(data); slot < count; slot++) {
+			 KeyClass key = BTPageBytes.keyAt(data, slot, headerPage.get_keyType());
+			 if (hi_key != null && BT.keyCompare(key, hi_key) > 0)
+				 break;
+			 keys.add(key);
+			 children.add(BTPageBytes.childAt(data, slot));
+		 }
+	 }
+ 
+	 /**
+	  * Look up the entries with key `key'. Unlike new_scan this leaves nothing
+	  * to iterate or destroy: the run of the key is read and the leaves it is
+	  * on are unpinned before the call returns.
+	  *
+	  * @param key
+	  *            the key to look up. Input parameter.
+	  * @return the rids of the entries with key `key', duplicates in index
+	  *         order; empty if there are none
+	  * @exception IOException
+	  *                error from the lower layer
+	  * @exception KeyNotMatchException
+	  *                key is not integer key nor string key
+	  * @exception IteratorException
+	  *                iterator error
+	  * @exception ConstructPageException
+	  *                error in BT page constructor
+	  * @exception PinPageException
+	  *                error when pin a page
+	  * @exception UnpinPageException
+	  *                error when unpin a page
+	  */
+	 public RID[] search(KeyClass key) throws IOException, KeyNotMatchException,
+			 IteratorException, ConstructPageException, PinPageException,
+			 UnpinPageException {
+		 java.util.ArrayList<RID> rids = new java.util.ArrayList<RID>();
+		 BTLeafBlock block = compressedLeaves() ? new BTLeafBlock(headerPage
+				 .get_keyType()) : null;
+		 long started = metrics.begin();
+		 BTLatches latches = new BTLatches();
+		 try {
+			 RID startrid = new RID();
+			 BTLeafPage leafPage = findRunStart(key, startrid, latches, false);
+			 int slot = startrid.slotNo;
+			 while (leafPage != null && collectRun(leafPage, block, slot, key, rids)) {
+				 leafPage = nextRunLeaf(leafPage, latches);
+				 slot = 0;
+			 }
+			 if (leafPage != null)
+				 unpinPage(leafPage.getCurPage());
+		 } finally {
+			 latches.releaseAll();
+			 metrics.end(BTMetrics.SEARCH, started);
+		 }
+		 return rids.toArray(new RID[rids.size()]);
+	 }
+ 
+	 /**
+	  * search for an integer index, comparing key as an int on the leaves.
+	  *
+	  * @param key
+	  *            the key to look up. Input parameter.
+	  * @return the rids of the entries with key `key', duplicates in index
+	  *         order; empty if there are none
+	  * @exception KeyNotMatchException
+	  *                the index does not have integer keys
+	  * @exception IOException
+	  *                error from the lower layer
+	  * @exception ConstructPageException
+	  *                error in BT page constructor
+	  * @exception PinPageException
+	  *                error when pin a page
+	  * @exception UnpinPageException
+	  *                error when unpin a page
+	  */
+	 public RID[] search(int key) throws KeyNotMatchException, IOException,
+			 ConstructPageException, PinPageException, UnpinPageException {
+		 if (headerPage.get_keyType() != AttrType.attrInteger)
+			 throw new KeyNotMatchException(null, "index does not have integer keys");
+ 
+		 java.util.ArrayList<RID> rids = new java.util.ArrayList<RID>();
+		 BTLeafBlock block = compressedLeaves() ? new BTLeafBlock(
+				 AttrType.attrInteger) : null;
+		 long started = metrics.begin();
+		 BTLatches latches = new BTLatches();
+		 try {
+			 RID startrid = new RID();
+			 BTLeafPage leafPage = findRunStart(key, startrid, latches, false);
+			 int slot = startrid.slotNo;
+			 while (leafPage != null && collectRun(leafPage, block, slot, key, rids)) {
+				 leafPage = nextRunLeaf(leafPage, latches);
+				 slot = 0;
+			 }
+			 if (leafPage != null)
+				 unpinPage(leafPage.getCurPage());
+		 } finally {
+			 latches.releaseAll();
+			 metrics.end(BTMetrics.SEARCH, started);
+		 }
+		 return rids.toArray(new RID[rids.size()]);
+	 }
+ 
+	 /**
+	  * Look up several keys at once. The keys are taken in key order, and each
+	  * one is looked for from where the one before it was found: on the same
+	  * leaf while it is not past the leaf's high key, else from the lowest
+	  * index page on the way down to that leaf that it is not past. The index
+	  * pages on that way stay pinned for the whole batch, and are read without
+	  * latches, under optimistic stamps as in findRunStart.
+	  *
+	  * @param keys
+	  *            the keys to look up. Input parameter.
+	  * @return for each key, at the same position, the rids search would
+	  *         return for it
+	  * @exception IOException
+	  *                error from the lower layer
+	  * @exception KeyNotMatchException
+	  *                a key is not of the key type of the index
+	  * @exception IteratorException
+	  *                iterator error
+	  * @exception ConstructPageException
+	  *                error in BT page constructor
+	  * @exception PinPageException
+	  *                error when pin a page
+	  * @exception UnpinPageException
+	  *                error when unpin a page
+	  */
+	 public RID[][] searchBatch(final KeyClass[] keys) throws IOException,
+			 KeyNotMatchException, IteratorException, ConstructPageException,
+			 PinPageException, UnpinPageException {
+		 int keyType = headerPage.get_keyType();
+		 Integer[] order = new Integer[keys.length];
+		 for (int i = 0; i < keys.length; i++) {
+			 if (keyType == AttrType.attrInteger ? !(keys[i] instanceof IntegerKey)
+					 : !(keys[i] instanceof StringKey))
+				 throw new KeyNotMatchException(null, "key types do not match");
+			 order[i] = i;
+		 }
+		 java.util.Arrays.sort(order, new java.util.Comparator<Integer>() {
+			 public int compare(Integer a, Integer b) {
+				 try {
+					 return BT.keyCompare(keys[a], keys[b]);
+				 } catch (KeyNotMatchException e) {
+					 throw new IllegalStateException(e); // checked above
+				 }
+			 }
+		 });
+ 
+		 RID[][] result = new RID[keys.length][];
+		 java.util.ArrayList<RID> rids = new java.util.ArrayList<RID>();
+		 BTLeafBlock block = compressedLeaves() ? new BTLeafBlock(keyType) : null;
+		 BatchPath path = new BatchPath();
+		 BTLatches latches = new BTLatches();
+		 BTLeafPage leafPage = null; // latched and pinned
+		 int last = -1; // position in keys of the key looked up last
+		 BTLatches.beginOptimistic(); // for the pages pinned on path
+		 try {
+			 for (int at : order) {
+				 KeyClass key = keys[at];
+				 if (last >= 0 && BT.keyCompare(key, keys[last]) == 0) {
+					 result[at] = result[last].clone();
+					 continue;
+				 }
+				 if (leafPage != null
+						 && BTPageBytes.pastHighKey(key, leafPage.getpage())) {
+					 unpinPage(leafPage.getCurPage());
+					 latches.release(leafPage.getCurPage().pid);
+					 leafPage = null;
+				 }
+				 if (leafPage == null)
+					 leafPage = batchDescend(key, path, latches);
+ 
+				 rids.clear();
+				 int slot = leafPage == null ? 0 : leafLowerBound(leafPage, key);
+				 while (leafPage != null
+						 && collectRun(leafPage, block, slot, key, rids)) {
+					 leafPage = nextRunLeaf(leafPage, latches);
+					 slot = 0;
 				 }
+				 result[at] = rids.toArray(new RID[rids.size()]);
+				 last = at;
 			 }
-			 unpinPage(id);
-			 trace.writeBytes(lineSep);
-			 trace.flush();
+		 } finally {
+			 if (leafPage != null)
+				 unpinPage(leafPage.getCurPage());
+			 latches.releaseAll();
+			 unpinPath(path, 0);
+			 BTLatches.endOptimistic();
 		 }
+		 metrics.add(BTMetrics.SEARCH, keys.length);
+		 return result;
+	 }
+ 
+	 /*
+	  * The index pages searchBatch went through on its way down to its current
+	  * leaf, root first, each pinned, with the optimistic stamp it was read
+	  * under.
+	  */
+	 private static final class BatchPath {
+		 BTSortedPage[] pages = new BTSortedPage[8];
+		 long[] stamps = new long[8];
+		 int depth;
+		 long shifts; // BTLatches.shifts() when the path was started
+	 }
+ 
+	 /*
+	  * Find the leaf for the next key of searchBatch, going down from the
+	  * deepest page on path that the key is not past and that has not changed
+	  * since it was read. The pages read on the way are pushed onto path.
+	  * Returns the leaf latched and pinned, or null if the tree is empty. If a
+	  * writer gets in the way, path is dropped and findRunStart finds the leaf.
+	  */
+	 private BTLeafPage batchDescend(KeyClass key, BatchPath path,
+			 BTLatches latches) throws IOException, KeyNotMatchException,
+			 IteratorException, ConstructPageException, PinPageException,
+			 UnpinPageException {
+		 if (path.shifts != BTLatches.shifts())
+			 unpinPath(path, 0);
+		 while (path.depth > 0) {
+			 int d = path.depth - 1;
+			 int pid = path.pages[d].getCurPage().pid;
+			 if (BTLatches.validate(pid, path.stamps[d])
+					 && !BTPageBytes.pastHighKey(key, path.pages[d].getpage())
+					 && BTLatches.validate(pid, path.stamps[d]))
+				 break;
+			 unpinPath(path, d);
+		 }
+ 
+		 if (path.depth == 0) {
+			 long stamp = BTLatches.optimistic(headerPageId.pid);
+			 PageId root = rootId();
+			 path.shifts = BTLatches.shifts();
+			 if (stamp == 0 || !BTLatches.validate(headerPageId.pid, stamp))
+				 return latchedRunStart(key, path, latches);
+			 if (root.pid == INVALID_PAGE)
+				 return null;
+			 if (!pushPath(path, root))
+				 return latchedRunStart(key, path, latches);
+		 }
+ 
+		 while (true) {
+			 int d = path.depth - 1;
+			 BTSortedPage page = path.pages[d];
+			 PageId pageno = page.getCurPage();
+			 boolean leaf, right;
+			 int next;
+			 try {
+				 byte[] data = page.getpage();
+				 leaf = page.getType() == NodeType.LEAF;
+				 right = !leaf && BTPageBytes.pastHighKey(key, data);
+				 next = leaf ? INVALID_PAGE : right ? page.getNextPage().pid
+						 : BTPageBytes.firstChildFor(data, key);
+			 } catch (RuntimeException e) {
+				 // the page changed under us; validate fails below
+				 leaf = right = false;
+				 next = INVALID_PAGE;
+			 }
+			 if (!BTLatches.validate(pageno.pid, path.stamps[d]))
+				 return latchedRunStart(key, path, latches);
+ 
+			 if (leaf) {
+				 // the leaf leaves the path, pinned, and is latched
+				 path.pages[--path.depth] = null;
+				 latches.shared(pageno.pid);
+				 if (BTLatches.shifts() != path.shifts) {
+					 latches.release(pageno.pid);
+					 unpinPage(pageno);
+					 return latchedRunStart(key, path, latches);
+				 }
+				 BTSortedPage sortPage = descend(page, key, latches, false);
+				 if (sortPage == null)
+					 return latchedRunStart(key, path, latches);
+				 return new BTLeafPage(sortPage, headerPage.get_keyType());
+			 }
+ 
+			 BTTrace.visit(pageno.pid);
+			 if (right)
+				 unpinPath(path, d); // the page split: its right sibling replaces it
+			 if (!pushPath(path, new PageId(next)))
+				 return latchedRunStart(key, path, latches);
+		 }
+	 }
+ 
+	 /*
+	  * Pin page pageno, reached through a link read on path, and push it with
+	  * an optimistic stamp. Returns false, leaving it unpinned, if a writer
+	  * holds it or shifts moved on.
+	  */
+	 private boolean pushPath(BatchPath path, PageId pageno)
+			 throws IOException, PinPageException, UnpinPageException {
+		 BTSortedPage page = new BTSortedPage(pinPage(pageno), headerPage
+				 .get_keyType());
+		 long stamp = BTLatches.optimistic(pageno.pid);
+		 if (stamp == 0 || BTLatches.shifts() != path.shifts) {
+			 unpinPage(pageno);
+			 return false;
+		 }
+		 if (path.depth == path.pages.length) {
+			 path.pages = java.util.Arrays.copyOf(path.pages, 2 * path.depth);
+			 path.stamps = java.util.Arrays.copyOf(path.stamps, 2 * path.depth);
+		 }
+		 path.pages[path.depth] = page;
+		 path.stamps[path.depth++] = stamp;
+		 return true;
+	 }
+ 
+	 /*
+	  * Unpin the pages of path below the first `keep'.
+	  */
+	 private void unpinPath(BatchPath path, int keep) throws IOException,
+			 UnpinPageException {
+		 while (path.depth > keep) {
+			 unpinPage(path.pages[--path.depth].getCurPage());
+			 path.pages[path.depth] = null;
+		 }
+	 }
+ 
+	 /*
+	  * batchDescend gives up on path and finds the leaf with findRunStart.
+	  */
+	 private BTLeafPage latchedRunStart(KeyClass key, BatchPath path,
+			 BTLatches latches) throws IOException, KeyNotMatchException,
+			 IteratorException, ConstructPageException, PinPageException,
+			 UnpinPageException {
+		 unpinPath(path, 0);
+		 return findRunStart(key, new RID(), latches, false);
+	 }
+ 
+	 /*
+	  * Add the rids of the run of `key' on a leaf, from entry `slot' on, to
+	  * rids. Returns whether the run may go on in the next leaf. block is as
+	  * for findInRun.
+	  */
+	 private boolean collectRun(BTSortedPage leaf, BTLeafBlock block, int slot,
+			 KeyClass key, java.util.List<RID> rids) throws KeyNotMatchException {
+		 byte[] data = leaf.getpage();
+		 if (block != null)
+			 block.read(data);
+		 int count = block != null ? block.count : BTPageBytes.slotCount(data);
+		 for (; slot < count; slot++) {
+			 int cmp = block != null ? block.compare(key, slot) : BTPageBytes
+					 .compareKey(key, data, slot);
+			 if (cmp != 0)
+				 return false;
+			 rids.add(ridAt(data, block, slot));
+		 }
+		 return true;
+	 }
+ 
+	 private boolean collectRun(BTSortedPage leaf, BTLeafBlock block, int slot,
+			 int key, java.util.List<RID> rids) {
+		 byte[] data = leaf.getpage();
+		 if (block != null)
+			 block.read(data);
+		 int count = block != null ? block.count : BTPageBytes.slotCount(data);
+		 for (; slot < count; slot++) {
+			 int k = block != null ? block.intKeys[slot] : BTPageBytes.intKeyAt(
+					 data, slot);
+			 if (k != key)
+				 return false;
+			 rids.add(ridAt(data, block, slot));
+		 }
+		 return true;
+	 }
+ 
+	 private static RID ridAt(byte[] data, BTLeafBlock block, int slot) {
+		 if (block != null)
+			 return new RID(new PageId(block.ridPages[slot]), block.ridSlots[slot]);
+		 return new RID(new PageId(BTPageBytes.ridPageAt(data, slot)), BTPageBytes
+				 .ridSlotAt(data, slot));
+	 }
  
+	 /*
+	  * Move from a latched and pinned leaf to the one after it, latching that
+	  * before letting go of this one. Returns it latched and pinned, or null at
+	  * the end of the leaf level.
+	  */
+	 private BTLeafPage nextRunLeaf(BTLeafPage leafPage, BTLatches latches)
+			 throws IOException, ConstructPageException, PinPageException,
+			 UnpinPageException {
+		 PageId nextPageId = leafPage.getNextPage();
+		 if (nextPageId.pid != INVALID_PAGE)
+			 latches.shared(nextPageId.pid);
+		 latches.release(leafPage.getCurPage().pid);
+		 unpinPage(leafPage.getCurPage());
+		 if (nextPageId.pid == INVALID_PAGE)
+			 return null;
+		 return new BTLeafPage(pinPage(nextPageId), headerPage.get_keyType());
+	 }
+ 
+	 /*
+	  * Trace the children of page id: the child ids of an index page, the
+	  * entries of a leaf.
+	  */
+	 void trace_children(PageId id) throws IOException, IteratorException,
+			 ConstructPageException, PinPageException, UnpinPageException {
+ 
+		 if (!BTTrace.on())
+			 return;
+ 
+		 BTSortedPage sortedPage = new BTSortedPage(pinPage(id), headerPage
+				 .get_keyType());
+		 byte[] data = sortedPage.getpage();
+		 int n = BTPageBytes.slotCount(data);
+		 if (sortedPage.getType() == NodeType.INDEX) {
+			 BTTrace.record(BTTrace.INDEX_CHILDREN, id.pid, n + 1, 0, 0);
+			 BTTrace.record(BTTrace.CHILD, id.pid, sortedPage.getPrevPage().pid,
+					 0, 0);
+			 for (int i = 0; i < n; i++)
+				 BTTrace.record(BTTrace.CHILD, id.pid, BTPageBytes.childAt(data, i),
+						 0, 0);
+		 } else if (sortedPage.getType() == NodeType.LEAF) {
+			 boolean intKeys = headerPage.get_keyType() == AttrType.attrInteger;
+			 if (compressedLeaves()) {
+				 BTLeafBlock block = new BTLeafBlock(headerPage.get_keyType());
+				 block.read(data);
+				 BTTrace.record(BTTrace.LEAF_CHILDREN, id.pid, block.count, 0, 0);
+				 for (int i = 0; i < block.count; i++)
+					 BTTrace.record(BTTrace.ENTRY, id.pid, intKeys ? block.intKeys[i]
+							 : 0, block.ridPages[i], block.ridSlots[i]);
+			 } else {
+				 BTTrace.record(BTTrace.LEAF_CHILDREN, id.pid, n, 0, 0);
+				 for (int i = 0; i < n; i++)
+					 BTTrace.record(BTTrace.ENTRY, id.pid, intKeys ? BTPageBytes
+							 .intKeyAt(data, i) : 0, BTPageBytes.ridPageAt(data, i),
+							 BTPageBytes.ridSlotAt(data, i));
+			 }
+		 }
+		 unpinPage(id);
 	 }
  
  }
@@ -0,0 +1,16 @@
+package btree;
+
+/**
+ * Leaf page formats a BTreeFile can be created with. The format is fixed
+ * when the file is created and kept in its header page.
+ */
+public class LeafFormat {
+	/** One record per <key, rid> entry, as BTLeafPage writes them. */
+	public static final int PLAIN = 0;
+
+	/**
+	 * All entries of a leaf in one record, string keys prefix compressed
+	 * and integer keys delta coded between restart points (see BTLeafBlock).
+	 */
+	public static final int COMPRESSED = 1;
+}
@@ -0,0 +1,82 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import btree.*;
+import global.*;
+
+/**
+ * Insert treeSize keys in random order, then delete half of them in
+ * another random order, as test4 (integer keys) and test5 (string keys)
+ * of BTTest do, with naive or full delete. One invocation is the whole
+ * mix on an empty index.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class DeleteBench {
+
+	@Param({ "integer", "string" })
+	public String keyType;
+
+	@Param({ "64", "1024" })
+	public int poolPages;
+
+	@Param({ "10000", "100000" })
+	public int treeSize;
+
+	@Param({ "naive", "full" })
+	public String deleteFashion;
+
+	private String dbpath;
+	private KeyClass[] keys;
+	private RID[] rids;
+	private KeyClass[] deleteKeys;
+	private RID[] deleteRids;
+	private BTreeFile file;
+	private int files;
+
+	@Setup(Level.Trial)
+	public void open() {
+		dbpath = Workload.open(poolPages, treeSize);
+		int[] ks = Workload.order("random", treeSize, Workload.SEED);
+		keys = Workload.keys(keyType, ks);
+		rids = Workload.rids(ks);
+		Workload.shuffle(ks, Workload.SEED + 1);
+		int[] half = java.util.Arrays.copyOf(ks, treeSize / 2);
+		deleteKeys = Workload.keys(keyType, half);
+		deleteRids = Workload.rids(half);
+	}
+
+	@Setup(Level.Iteration)
+	public void create() throws Exception {
+		file = Workload.create("delete" + files++, keyType, deleteFashion
+				.equals("full") ? DeleteFashion.FULL_DELETE
+				: DeleteFashion.NAIVE_DELETE);
+	}
+
+	@Benchmark
+	public BTreeFile insertThenDelete() throws Exception {
+		for (int i = 0; i < keys.length; i++)
+			file.insert(keys[i], rids[i]);
+		for (int i = 0; i < deleteKeys.length; i++)
+			if (!file.Delete(deleteKeys[i], deleteRids[i]))
+				throw new IllegalStateException("missed " + deleteKeys[i]);
+		return file;
+	}
+
+	@TearDown(Level.Iteration)
+	public void destroy() throws Exception {
+		file.destroyFile();
+	}
+
+	@TearDown(Level.Trial)
+	public void close() {
+		Workload.close(dbpath);
+	}
+}
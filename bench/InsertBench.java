@@ -0,0 +1,72 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import btree.*;
+import global.*;
+
+/**
+ * Build a tree of treeSize keys by single inserts, in ascending,
+ * descending or random key order, as test1, test2 and test3 of BTTest do.
+ * One invocation builds one tree into an empty index; divide by treeSize
+ * for the time of an insert.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class InsertBench {
+
+	@Param({ "integer", "string" })
+	public String keyType;
+
+	@Param({ "64", "1024" })
+	public int poolPages;
+
+	@Param({ "10000", "100000" })
+	public int treeSize;
+
+	@Param({ "ascending", "descending", "random" })
+	public String order;
+
+	private String dbpath;
+	private KeyClass[] keys;
+	private RID[] rids;
+	private BTreeFile file;
+	private int files;
+
+	@Setup(Level.Trial)
+	public void open() {
+		dbpath = Workload.open(poolPages, treeSize);
+		int[] ks = Workload.order(order, treeSize, Workload.SEED);
+		keys = Workload.keys(keyType, ks);
+		rids = Workload.rids(ks);
+	}
+
+	@Setup(Level.Iteration)
+	public void create() throws Exception {
+		file = Workload.create("insert" + files++, keyType,
+				DeleteFashion.NAIVE_DELETE);
+	}
+
+	@Benchmark
+	public BTreeFile insert() throws Exception {
+		for (int i = 0; i < keys.length; i++)
+			file.insert(keys[i], rids[i]);
+		return file;
+	}
+
+	@TearDown(Level.Iteration)
+	public void destroy() throws Exception {
+		file.destroyFile();
+	}
+
+	@TearDown(Level.Trial)
+	public void close() {
+		Workload.close(dbpath);
+	}
+}
@@ -0,0 +1,57 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import btree.*;
+import global.*;
+
+/**
+ * Point lookups with search on a tree of treeSize keys: each invocation
+ * looks up the next key of a fixed random sequence of keys in the tree.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class LookupBench {
+
+	@Param({ "integer", "string" })
+	public String keyType;
+
+	@Param({ "64", "1024" })
+	public int poolPages;
+
+	@Param({ "10000", "100000" })
+	public int treeSize;
+
+	private String dbpath;
+	private BTreeFile file;
+	private KeyClass[] probes;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void open() throws Exception {
+		dbpath = Workload.open(poolPages, treeSize);
+		file = Workload.filled("lookup", keyType, treeSize);
+		probes = Workload.keys(keyType, Workload.order("random", treeSize,
+				Workload.SEED + 2));
+	}
+
+	@Benchmark
+	public RID[] search() throws Exception {
+		KeyClass key = probes[next];
+		if (++next == probes.length)
+			next = 0;
+		return file.search(key);
+	}
+
+	@TearDown(Level.Trial)
+	public void close() throws Exception {
+		file.destroyFile();
+		Workload.close(dbpath);
+	}
+}
@@ -0,0 +1,70 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import btree.*;
+import global.*;
+
+/**
+ * Range scans of scanLength entries on a tree of treeSize keys, starting
+ * at the keys of a fixed random sequence: each invocation opens a scan
+ * with new_scan, reads it to the end of its range and is done.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class ScanBench {
+
+	@Param({ "integer", "string" })
+	public String keyType;
+
+	@Param({ "64", "1024" })
+	public int poolPages;
+
+	@Param({ "10000", "100000" })
+	public int treeSize;
+
+	@Param({ "10", "1000" })
+	public int scanLength;
+
+	private String dbpath;
+	private BTreeFile file;
+	private int[] starts;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void open() throws Exception {
+		dbpath = Workload.open(poolPages, treeSize);
+		file = Workload.filled("scan", keyType, treeSize);
+		starts = Workload.order("random", treeSize - scanLength + 1,
+				Workload.SEED + 3);
+	}
+
+	@Benchmark
+	public int scan(Blackhole blackhole) throws Exception {
+		int lo = starts[next];
+		if (++next == starts.length)
+			next = 0;
+		BTFileScan scan = file.new_scan(Workload.key(keyType, lo), Workload
+				.key(keyType, lo + scanLength - 1));
+		int n = 0;
+		KeyDataEntry entry;
+		while ((entry = scan.get_next()) != null) {
+			blackhole.consume(entry);
+			n++;
+		}
+		return n;
+	}
+
+	@TearDown(Level.Trial)
+	public void close() throws Exception {
+		file.destroyFile();
+		Workload.close(dbpath);
+	}
+}
@@ -0,0 +1,109 @@
+package bench;
+
+import java.io.File;
+import java.util.Random;
+
+import btree.*;
+import global.*;
+
+/**
+ * What the benchmarks share: a Minibase database of their own, keys of
+ * either type in a given order, and trees filled with them.
+ *
+ * Key k is IntegerKey(k) in an integer index and k as ten zero-padded
+ * digits in a string index, so both sort the same way; its rid is
+ * <k, k>. Shuffles use a fixed seed, so every run sees the same keys in
+ * the same order.
+ */
+final class Workload implements GlobalConst {
+
+	static final long SEED = 4331;
+	static final int STRING_KEY_SIZE = 12; // ten digits written as UTF
+
+	private Workload() {
+	}
+
+	/**
+	 * Create a database for a tree of up to treeSize keys with a buffer pool
+	 * of poolPages pages. Minibase has one database per JVM; JMH forks one
+	 * for every trial.
+	 *
+	 * @return the path of the database file
+	 */
+	static String open(int poolPages, int treeSize) {
+		String dbpath = System.getProperty("java.io.tmpdir") + File.separator
+				+ "btree-bench-" + System.nanoTime() + ".minibase-db";
+		// room for a few trees of treeSize string keys, each 2/3 full
+		int dbPages = Math.max(2000, treeSize / 4);
+		new SystemDefs(dbpath, dbPages, poolPages, "Clock");
+		return dbpath;
+	}
+
+	static void close(String dbpath) {
+		new File(dbpath).delete();
+	}
+
+	static BTreeFile create(String name, String keyType, int deleteFashion)
+			throws Exception {
+		if (keyType.equals("integer"))
+			return new BTreeFile(name, AttrType.attrInteger, 4, deleteFashion);
+		return new BTreeFile(name, AttrType.attrString, STRING_KEY_SIZE,
+				deleteFashion);
+	}
+
+	/**
+	 * 0 .. n-1 in "ascending", "descending" or "random" order.
+	 */
+	static int[] order(String order, int n, long seed) {
+		int[] ks = new int[n];
+		for (int i = 0; i < n; i++)
+			ks[i] = order.equals("descending") ? n - 1 - i : i;
+		if (order.equals("random"))
+			shuffle(ks, seed);
+		return ks;
+	}
+
+	static void shuffle(int[] ks, long seed) {
+		Random random = new Random(seed);
+		for (int i = ks.length - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			int tmp = ks[i];
+			ks[i] = ks[j];
+			ks[j] = tmp;
+		}
+	}
+
+	static KeyClass key(String keyType, int k) {
+		if (keyType.equals("integer"))
+			return new IntegerKey(k);
+		return new StringKey(String.format("%010d", k));
+	}
+
+	static KeyClass[] keys(String keyType, int[] ks) {
+		KeyClass[] keys = new KeyClass[ks.length];
+		for (int i = 0; i < ks.length; i++)
+			keys[i] = key(keyType, ks[i]);
+		return keys;
+	}
+
+	static RID[] rids(int[] ks) {
+		RID[] rids = new RID[ks.length];
+		for (int i = 0; i < ks.length; i++)
+			rids[i] = new RID(new PageId(ks[i]), ks[i]);
+		return rids;
+	}
+
+	/**
+	 * A tree of the keys 0 .. treeSize-1, inserted in random order.
+	 */
+	static BTreeFile filled(String name, String keyType, int treeSize)
+			throws Exception {
+		BTreeFile file = create(name, keyType, DeleteFashion.NAIVE_DELETE);
+		int[] ks = order("random", treeSize, SEED);
+		KeyClass[] keys = keys(keyType, ks);
+		RID[] rids = rids(ks);
+		for (int i = 0; i < keys.length; i++)
+			file.insert(keys[i], rids[i]);
+		return file;
+	}
+}